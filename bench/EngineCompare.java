@@ -0,0 +1,136 @@
+/*
+ * File: EngineCompare.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Head to head run of the engines. LoadBench is started in a fresh JVM for each
+ *       server.engine (async, virtual, selector) with the same load, so no run inherits
+ *       another's heap or JIT state, and the results are printed side by side:
+ *       throughput, latency percentiles and the memory held with every connection open.
+ *
+ *       Usage: java EngineCompare [name=value ...]
+ *         connections=10000   concurrent client connections
+ *         jvm=-Xmx2g          options for the child JVMs, separated by spaces
+ *         anything else is passed on to LoadBench, i.e. duration=20 mix=1k:1
+ *
+ *       Client and server share a process, so the open file limit (ulimit -n) has to be
+ *       comfortably above twice the connections.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class EngineCompare {
+
+	private static final String[] ENGINES = {"async", "virtual", "selector"};
+
+	// rows of the table: label, line of LoadBench output it is on, and the number's pattern
+	private static final String[][] ROWS = {
+			{"Requests/s", "Throughput:", "([\\d.]+) req/s"},
+			{"MB/s", "Throughput:", "([\\d.]+) MB/s"},
+			{"p50 ms", "Latency:", "p50 ([\\d.]+)"},
+			{"p99 ms", "Latency:", "p99 ([\\d.]+)"},
+			{"p999 ms", "Latency:", "p999 ([\\d.]+)"},
+			{"max ms", "Latency:", "max ([\\d.]+)"},
+			{"4xx/5xx", "Requests:", "responses: (\\d+)"},
+			{"Conn errors", "Requests:", "errors: (\\d+)"},
+			{"Heap MB", "Memory:", "heap ([\\d.]+)"},
+			{"Direct MB", "Memory:", "direct ([\\d.]+)"},
+			{"RSS MB", "Memory:", "RSS ([\\d.]+|n/a)"},
+			{"Threads", "Memory:", "threads (\\d+)"}
+	};
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> opts = new LinkedHashMap<String,String>();
+		opts.put("connections", "10000");
+		opts.put("jvm", "");
+		for(String a : args) {
+			int eq = a.indexOf('=');
+			if(eq < 0) {
+				System.out.println("Arguments are name=value, got " + a);
+				return;
+			}
+			opts.put(a.substring(0, eq), a.substring(eq + 1));
+		}
+		// leave room for connections the server has not finished closing when clients reconnect
+		if(!opts.containsKey("server.connections.max"))
+			opts.put("server.connections.max", String.valueOf(Integer.parseInt(opts.get("connections")) * 2));
+
+		List<Map<String,String>> results = new ArrayList<Map<String,String>>();
+		for(String engine : ENGINES) {
+			System.out.println("== server.engine=" + engine);
+			results.add(run(engine, opts));
+			System.out.println();
+		}
+
+		System.out.printf("%-12s", "");
+		for(String engine : ENGINES)
+			System.out.printf("%14s", engine);
+		System.out.println();
+		for(String[] row : ROWS) {
+			System.out.printf("%-12s", row[0]);
+			for(Map<String,String> r : results) {
+				String v = r.get(row[0]);
+				System.out.printf("%14s", v == null ? "-" : v);
+			}
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Run LoadBench with one engine in a child JVM and pick the numbers out of its report
+	 * @param engine Value of server.engine
+	 * @param opts Options of this run
+	 * @return Value of each row, missing if the run did not report it
+	 */
+	private static Map<String,String> run(String engine, Map<String,String> opts) throws IOException, InterruptedException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for(String o : opts.get("jvm").trim().split("\\s+")) {
+			if(!o.isEmpty())
+				cmd.add(o);
+		}
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add("LoadBench");
+		for(Map.Entry<String,String> e : opts.entrySet()) {
+			if(!e.getKey().equals("jvm") && !e.getKey().equals("server.engine"))
+				cmd.add(e.getKey() + "=" + e.getValue());
+		}
+		cmd.add("server.engine=" + engine);
+
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+
+		Map<String,String> found = new LinkedHashMap<String,String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				System.out.println(line);
+				for(String[] row : ROWS) {
+					if(!line.startsWith(row[1]))
+						continue;
+					Matcher m = Pattern.compile(row[2]).matcher(line);
+					if(m.find())
+						found.put(row[0], m.group(1));
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		if(p.waitFor() != 0)
+			System.out.println("WARNING: LoadBench exited with " + p.exitValue());
+		return found;
+	}
+}
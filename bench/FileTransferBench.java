@@ -0,0 +1,124 @@
+/*
+ * File: FileTransferBench.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Compare static file throughput of the FileChannel path (server.sendfile = on) against
+ *       the old SequenceInputStream path (server.sendfile = off). Starts the server on a
+ *       loopback port and downloads the same file repeatedly over one keep-alive connection.
+ *
+ *       Usage: java FileTransferBench [file size in MB] [downloads per run]
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+
+public class FileTransferBench {
+
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int downloads = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		// document root with a single file of random data
+		File root = new File(System.getProperty("java.io.tmpdir"), "asyncserver-bench-" + System.nanoTime());
+		root.mkdirs();
+		File data = new File(root, "data.bin");
+		writeFile(data, sizeMB * 1024L * 1024L);
+
+		ServerConfig sc = new ServerConfig(new File(root, "none.conf").getPath());
+		sc.insert("server.root", root.getPath());
+		HTTPServer.initServer(sc);
+		ASockSession.initSessions(sc);
+		ServerExecutors.init(sc);
+
+		AsynchronousServerSocketChannel listener =
+				AsynchronousServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+		listener.accept(null, new Responder(listener, BufferPool.fromConfig(sc)));
+		InetSocketAddress addr = (InetSocketAddress)listener.getLocalAddress();
+
+		System.out.println("File size: " + sizeMB + " MB, " + downloads + " downloads per run");
+		String[] modes = {"off", "on"};
+		for(int r = 0; r < RUNS; r++) {
+			for(String mode : modes) {
+				sc.insert("server.sendfile", mode);
+				HTTPServer.initServer(sc);
+				double mbs = run(addr, downloads, data.length());
+				System.out.printf("server.sendfile = %-3s : %10.1f MB/s%n", mode, mbs);
+			}
+		}
+
+		listener.close();
+		data.delete();
+		root.delete();
+		System.exit(0);
+	}
+
+	/**
+	 * Download the file repeatedly on one connection
+	 * @return Throughput in MB/s
+	 */
+	private static double run(InetSocketAddress addr, int downloads, long size) throws IOException {
+		SocketChannel sock = SocketChannel.open(addr);
+		ByteBuffer in = ByteBuffer.allocateDirect(256 * 1024);
+		byte[] request = "GET /data.bin HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+		long start = System.nanoTime();
+		for(int i = 0; i < downloads; i++) {
+			sock.write(ByteBuffer.wrap(request));
+			readResponse(sock, in, size);
+		}
+		long elapsed = System.nanoTime() - start;
+		sock.close();
+
+		return (downloads * (double)size / (1024 * 1024)) / (elapsed / 1e9);
+	}
+
+	/**
+	 * Read one response with a body of the expected length, data is discarded
+	 */
+	private static void readResponse(SocketChannel sock, ByteBuffer in, long size) throws IOException {
+		in.clear();
+		int headerEnd = -1;
+		while(headerEnd < 0) {
+			if(sock.read(in) < 0)
+				throw new IOException("Connection closed in header");
+			for(int i = 3; i < in.position(); i++) {
+				if(in.get(i-3) == '\r' && in.get(i-2) == '\n' && in.get(i-1) == '\r' && in.get(i) == '\n') {
+					headerEnd = i + 1;
+					break;
+				}
+			}
+		}
+
+		long remaining = size - (in.position() - headerEnd);
+		while(remaining > 0) {
+			in.clear();
+			int read = sock.read(in);
+			if(read < 0)
+				throw new IOException("Connection closed in body");
+			remaining -= read;
+		}
+	}
+
+	private static void writeFile(File f, long size) throws IOException {
+		byte[] chunk = new byte[1024 * 1024];
+		new Random(42).nextBytes(chunk);
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			for(long w = 0; w < size; w += chunk.length)
+				out.write(chunk, 0, (int)Math.min(chunk.length, size - w));
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * File: LoadBench.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: End to end load test on one machine. Starts the server in this process on a loopback
+ *       port with ASock.start() and drives it with an asynchronous HTTP client. Each client
+ *       connection sends one request at a time, picked from a weighted mix of file sizes, and
+ *       either reuses the connection or opens a new one per request. Reports requests/sec,
+ *       throughput and p50/p99/p999 latency measured from request sent to last byte received,
+ *       and the memory held with every connection open (heap after a GC, direct buffers, process
+ *       RSS where /proc is available, platform threads). The client runs in the same JVM and is
+ *       the same for every run, so memory is for comparing settings, not an absolute figure.
+ *
+ *       Usage: java LoadBench [name=value ...]
+ *         connections=64      concurrent client connections
+ *         duration=10         seconds measured
+ *         warmup=3            seconds run before measuring
+ *         keepalive=on        reuse connections (off opens one per request)
+ *         mix=1k:70,64k:25,1m:5  file sizes and their share of requests (k and m suffixes)
+ *         server.*=value      any server setting, i.e. server.threads.model=forkjoin or
+ *                             server.engine=virtual
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NetworkChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class LoadBench {
+
+	private static volatile boolean running = true;
+	private static volatile boolean measuring = false;
+
+	private static final LatencyHistogram latency = new LatencyHistogram();
+	private static final LongAdder requests = new LongAdder();
+	private static final LongAdder bytes = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder failures = new LongAdder(); // responses with a 4xx or 5xx status
+
+	private static InetSocketAddress address;
+	private static AsynchronousChannelGroup clientGroup;
+	private static boolean keepAlive;
+	private static byte[][] requestBytes; // one request per file in the mix
+	private static int[] weights; // cumulative share of each request, out of weights[last]
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> opts = new LinkedHashMap<String,String>();
+		opts.put("connections", "64");
+		opts.put("duration", "10");
+		opts.put("warmup", "3");
+		opts.put("keepalive", "on");
+		opts.put("mix", "1k:70,64k:25,1m:5");
+		for(String a : args) {
+			int eq = a.indexOf('=');
+			if(eq < 0) {
+				System.out.println("Arguments are name=value, got " + a);
+				return;
+			}
+			opts.put(a.substring(0, eq), a.substring(eq + 1));
+		}
+
+		int connections = Integer.parseInt(opts.get("connections"));
+		int duration = Integer.parseInt(opts.get("duration"));
+		int warmup = Integer.parseInt(opts.get("warmup"));
+		keepAlive = !opts.get("keepalive").equalsIgnoreCase("off");
+
+		// document root with one file of random data per size in the mix
+		File root = new File(System.getProperty("java.io.tmpdir"), "asyncserver-load-" + System.nanoTime());
+		root.mkdirs();
+		String[] mix = opts.get("mix").split(",");
+		requestBytes = new byte[mix.length][];
+		weights = new int[mix.length];
+		List<File> files = new ArrayList<File>();
+		for(int i = 0; i < mix.length; i++) {
+			String[] sw = mix[i].split(":");
+			long size = parseSize(sw[0].trim());
+			String name = "f" + sw[0].trim() + ".bin";
+			File f = new File(root, name);
+			writeFile(f, size);
+			files.add(f);
+			requestBytes[i] = ("GET /" + name + " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: LoadBench\r\nAccept: */*\r\n"
+					+ (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			weights[i] = (i > 0 ? weights[i - 1] : 0) + (sw.length > 1 ? Integer.parseInt(sw[1].trim()) : 1);
+		}
+
+		ServerConfig sc = new ServerConfig(new File(root, "none.conf").getPath());
+		sc.insert("server.root", root.getPath());
+		sc.insert("server.log.access", new File(root, "access.log").getPath());
+		for(Map.Entry<String,String> e : opts.entrySet()) {
+			if(e.getKey().startsWith("server."))
+				sc.insert(e.getKey(), e.getValue());
+		}
+
+		// keep server console messages out of the measurement
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		NetworkChannel listener = ASock.start(sc, new InetSocketAddress("127.0.0.1", 0));
+		address = (InetSocketAddress)listener.getLocalAddress();
+		clientGroup = AsynchronousChannelGroup.withFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				Executors.defaultThreadFactory());
+
+		console.println("Connections: " + connections + ", keep-alive: " + (keepAlive ? "on" : "off") + ", mix: " + opts.get("mix")
+				+ ", engine: " + sc.getSetting("server.engine") + ", threads: " + sc.getSetting("server.threads.model") + ", cache: " + sc.getSetting("server.cache.size"));
+
+		// loads the management library while file descriptors are still free
+		memoryReport();
+		for(int i = 0; i < connections; i++)
+			new Client().connect();
+
+		Thread.sleep(warmup * 1000L);
+		long reqBefore = requests.sum(), bytesBefore = bytes.sum(), errBefore = errors.sum(), failBefore = failures.sum();
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(duration * 1000L);
+		measuring = false;
+		double secs = (System.nanoTime() - start) / 1e9;
+		// taken while every connection is still open
+		String memory = memoryReport();
+		running = false;
+
+		LatencyHistogram.Snapshot s = latency.snapshot();
+		long n = requests.sum() - reqBefore;
+		console.printf("Requests: %d in %.1f s, 4xx/5xx responses: %d, connection errors: %d%n", n, secs,
+				failures.sum() - failBefore, errors.sum() - errBefore);
+		console.printf("Throughput: %.0f req/s, %.1f MB/s%n", n / secs, (bytes.sum() - bytesBefore) / secs / (1024 * 1024));
+		console.printf("Latency: p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+				s.getValueAt(0.5) / 1e6, s.getValueAt(0.99) / 1e6, s.getValueAt(0.999) / 1e6, s.getMax() / 1e6);
+		console.println(memory);
+
+		clientGroup.shutdownNow();
+		clientGroup.awaitTermination(5, TimeUnit.SECONDS);
+		listener.close();
+		for(File f : files)
+			f.delete();
+		for(File f : root.listFiles())
+			f.delete();
+		root.delete();
+		System.setOut(console);
+		System.exit(0);
+	}
+
+	/**
+	 * One client connection. It sends a request, reads the whole response, and then sends the
+	 * next one on the same connection or on a new one.
+	 */
+	private static class Client implements CompletionHandler<Integer, Void> {
+		private AsynchronousSocketChannel ch;
+		private final ByteBuffer in = ByteBuffer.allocateDirect(65536);
+		private ByteBuffer out;
+		private boolean writing;
+		private boolean headerDone;
+		private boolean serverClose; // the server closes after this response
+		private boolean failure; // status was 4xx or 5xx
+		private long bodyLeft;
+		private long received;
+		private long sent; // System.nanoTime() the request was sent
+
+		void connect() {
+			if(!running)
+				return;
+			try {
+				ch = AsynchronousSocketChannel.open(clientGroup);
+			}
+			catch(IOException e) {
+				errors.increment();
+				return;
+			}
+			ch.connect(address, null, new CompletionHandler<Void, Void>() {
+				public void completed(Void v, Void a) {
+					send();
+				}
+				public void failed(Throwable t, Void a) {
+					fail();
+				}
+			});
+		}
+
+		void send() {
+			if(!running) {
+				close();
+				return;
+			}
+			int r = ThreadLocalRandom.current().nextInt(weights[weights.length - 1]);
+			int i = 0;
+			while(weights[i] <= r)
+				i++;
+			out = ByteBuffer.wrap(requestBytes[i]);
+			in.clear();
+			headerDone = false;
+			received = 0;
+			writing = true;
+			sent = System.nanoTime();
+			ch.write(out, null, this);
+		}
+
+		public void completed(Integer n, Void a) {
+			if(writing) {
+				if(out.hasRemaining()) {
+					ch.write(out, null, this);
+					return;
+				}
+				writing = false;
+				ch.read(in, null, this);
+				return;
+			}
+
+			if(n < 0) {
+				fail();
+				return;
+			}
+			received += n;
+
+			if(!headerDone) {
+				int end = headerEnd(in);
+				if(end < 0) {
+					if(!in.hasRemaining()) {
+						fail();
+						return;
+					}
+					ch.read(in, null, this);
+					return;
+				}
+				headerDone = true;
+				String head = headerText(in, end);
+				serverClose = head.contains("\r\nconnection: close");
+				failure = head.length() > 9 && head.charAt(9) >= '4';
+				long length = contentLength(head);
+				if(length < 0) {
+					fail();
+					return;
+				}
+				bodyLeft = length - (in.position() - end);
+			}
+			else {
+				bodyLeft -= n;
+			}
+
+			if(bodyLeft > 0) {
+				in.clear();
+				ch.read(in, null, this);
+				return;
+			}
+
+			// whole response received
+			if(measuring) {
+				latency.record(System.nanoTime() - sent);
+				requests.increment();
+				if(failure)
+					failures.increment();
+				bytes.add(received);
+			}
+			if(keepAlive && !serverClose) {
+				send();
+			}
+			else {
+				close();
+				connect();
+			}
+		}
+
+		public void failed(Throwable t, Void a) {
+			fail();
+		}
+
+		private void fail() {
+			if(running)
+				errors.increment();
+			close();
+			connect();
+		}
+
+		private void close() {
+			try {
+				ch.close();
+			}
+			catch(IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	/**
+	 * Find the end of the response header in the bytes read so far
+	 * @return Offset just past the blank line, -1 if it has not arrived
+	 */
+	private static int headerEnd(ByteBuffer b) {
+		for(int i = 3; i < b.position(); i++) {
+			if(b.get(i) == '\n' && b.get(i - 1) == '\r' && b.get(i - 2) == '\n' && b.get(i - 3) == '\r')
+				return i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy a response header out of the read buffer
+	 * @return The header in lower case
+	 */
+	private static String headerText(ByteBuffer b, int end) {
+		byte[] h = new byte[end];
+		ByteBuffer d = b.duplicate();
+		d.position(0);
+		d.get(h);
+		return new String(h, StandardCharsets.ISO_8859_1).toLowerCase();
+	}
+
+	/**
+	 * Read the Content-Length field of a response header
+	 * @param head Header from headerText()
+	 * @return The length, -1 if there is none
+	 */
+	private static long contentLength(String head) {
+		int i = head.indexOf("\r\ncontent-length:");
+		if(i < 0)
+			return -1;
+		int eol = head.indexOf('\r', i + 2);
+		return Long.parseLong(head.substring(i + 17, eol).trim());
+	}
+
+	/**
+	 * Describe the memory and threads in use
+	 * @return Report line
+	 */
+	private static String memoryReport() {
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		long heap = rt.totalMemory() - rt.freeMemory();
+		long direct = 0;
+		for(BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if(b.getName().equals("direct"))
+				direct = b.getMemoryUsed();
+		}
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		return String.format("Memory: heap %.1f MB after GC, direct %.1f MB, RSS %s, platform threads %d",
+				heap / 1048576.0, direct / 1048576.0, residentSize(), threads);
+	}
+
+	/**
+	 * Read the resident set size of this process from /proc
+	 * @return Size in MB, or "n/a" where /proc is not available
+	 */
+	private static String residentSize() {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while((line = r.readLine()) != null) {
+					if(line.startsWith("VmRSS:")) {
+						long kb = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+						return String.format("%.1f MB", kb / 1024.0);
+					}
+				}
+			}
+			finally {
+				r.close();
+			}
+		}
+		catch(IOException e) {
+			// not Linux
+		}
+		return "n/a";
+	}
+
+	private static long parseSize(String s) {
+		char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+		if(unit == 'k')
+			return Long.parseLong(s.substring(0, s.length() - 1)) * 1024;
+		if(unit == 'm')
+			return Long.parseLong(s.substring(0, s.length() - 1)) * 1024 * 1024;
+		return Long.parseLong(s);
+	}
+
+	private static void writeFile(File f, long size) throws IOException {
+		Random r = new Random(size);
+		byte[] chunk = new byte[65536];
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			for(long left = size; left > 0; left -= chunk.length) {
+				r.nextBytes(chunk);
+				out.write(chunk, 0, (int)Math.min(chunk.length, left));
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * File: MicroBench.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Micro-benchmarks for the request hot path: header parsing, header serialization,
+ *       error pages and config lookups. Each benchmark is warmed up, then timed over several
+ *       iterations and reported as ns/op with the spread between iterations, bytes allocated
+ *       per op (from the thread allocation counter) and the number of collections seen.
+ *       Run it before and after a change with the same arguments to compare.
+ *
+ *       Usage: java MicroBench [name filter] [measured iterations]
+ */
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class MicroBench {
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final long ITERATION_NS = 500000000L; // 0.5 s per iteration
+	private static final long BATCH_NS = 10000000L; // calls between clock reads, about 10 ms
+
+	// requests as sent by common clients, ending with the blank line
+	private static final String[] CORPUS = {
+		// Chrome page load
+		"GET /index.html HTTP/1.1\r\n"
+		+ "Host: www.example.com\r\n"
+		+ "Connection: keep-alive\r\n"
+		+ "Cache-Control: max-age=0\r\n"
+		+ "sec-ch-ua: \"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"\r\n"
+		+ "sec-ch-ua-mobile: ?0\r\n"
+		+ "sec-ch-ua-platform: \"Windows\"\r\n"
+		+ "Upgrade-Insecure-Requests: 1\r\n"
+		+ "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+		+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7\r\n"
+		+ "Sec-Fetch-Site: none\r\n"
+		+ "Sec-Fetch-Mode: navigate\r\n"
+		+ "Sec-Fetch-User: ?1\r\n"
+		+ "Sec-Fetch-Dest: document\r\n"
+		+ "Accept-Encoding: gzip, deflate, br\r\n"
+		+ "Accept-Language: en-US,en;q=0.9\r\n"
+		+ "Cookie: session=8f14e45fceea167a5a36dedd4bea2543; theme=dark; _ga=GA1.1.1234567890.1697040000\r\n"
+		+ "\r\n",
+		// Firefox stylesheet revalidation
+		"GET /css/site.css HTTP/1.1\r\n"
+		+ "Host: www.example.com\r\n"
+		+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n"
+		+ "Accept: text/css,*/*;q=0.1\r\n"
+		+ "Accept-Language: en-US,en;q=0.5\r\n"
+		+ "Accept-Encoding: gzip, deflate, br\r\n"
+		+ "Connection: keep-alive\r\n"
+		+ "Referer: http://www.example.com/index.html\r\n"
+		+ "If-Modified-Since: Tue, 10 Oct 2023 08:12:31 GMT\r\n"
+		+ "If-None-Match: \"5e1a3c2f-1f40\"\r\n"
+		+ "Sec-Fetch-Dest: style\r\n"
+		+ "Sec-Fetch-Mode: no-cors\r\n"
+		+ "Sec-Fetch-Site: same-origin\r\n"
+		+ "\r\n",
+		// Safari image
+		"GET /img/logo.png HTTP/1.1\r\n"
+		+ "Host: www.example.com\r\n"
+		+ "Accept: image/webp,image/avif,image/jxl,image/heic,image/heic-sequence,video/*;q=0.8,image/png,image/svg+xml,image/*;q=0.8,*/*;q=0.5\r\n"
+		+ "Accept-Encoding: gzip, deflate\r\n"
+		+ "Accept-Language: en-US,en;q=0.9\r\n"
+		+ "Connection: keep-alive\r\n"
+		+ "Referer: http://www.example.com/\r\n"
+		+ "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.0 Safari/605.1.15\r\n"
+		+ "\r\n",
+		// video seek
+		"GET /media/intro.mp4 HTTP/1.1\r\n"
+		+ "Host: www.example.com\r\n"
+		+ "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+		+ "Accept: */*\r\n"
+		+ "Accept-Encoding: identity;q=1, *;q=0\r\n"
+		+ "Range: bytes=1048576-\r\n"
+		+ "If-Range: \"9a0364b9-4c4b40\"\r\n"
+		+ "Connection: keep-alive\r\n"
+		+ "\r\n",
+		// curl
+		"GET /api/status.json HTTP/1.1\r\n"
+		+ "Host: localhost:8080\r\n"
+		+ "User-Agent: curl/8.4.0\r\n"
+		+ "Accept: */*\r\n"
+		+ "\r\n",
+	};
+
+	private static volatile long sink; // results go here so the JIT cannot drop the work
+
+	/**
+	 * A benchmark, op() is called repeatedly and should return something derived from its work
+	 */
+	private static abstract class Bench {
+		final String name;
+
+		Bench(String n) {
+			name = n;
+		}
+
+		abstract long op(int i);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		final byte[][] raw = new byte[CORPUS.length][];
+		for(int i = 0; i < CORPUS.length; i++)
+			raw[i] = CORPUS[i].getBytes(StandardCharsets.ISO_8859_1);
+
+		final ServerConfig sc = new ServerConfig(new File(System.getProperty("java.io.tmpdir"), "asyncserver-none.conf").getPath());
+		sc.insert("server.root", System.getProperty("java.io.tmpdir"));
+		HTTPServer.initServer(sc);
+
+		final HTTPRequestParser parser = new HTTPRequestParser();
+		final ByteBuffer readBuff = ByteBuffer.allocateDirect(8192);
+
+		List<Bench> benches = new ArrayList<Bench>();
+
+		benches.add(new Bench("header.parse.string") {
+			long op(int i) {
+				HTTPHeader hh = new HTTPHeader(CORPUS[i % CORPUS.length]);
+				return hh.getRequestLocation().length() + hh.getAttribute("Host").length();
+			}
+		});
+
+		benches.add(new Bench("header.parse.buffer") {
+			long op(int i) {
+				byte[] req = raw[i % raw.length];
+				parser.reset();
+				readBuff.clear();
+				readBuff.put(req);
+				parser.parse(readBuff);
+				HTTPHeader hh = new HTTPHeader(parser);
+				return hh.getRequestLocation().length() + hh.getAttribute("Host").length();
+			}
+		});
+
+		// the header arriving over three reads, as continueRead sees it on a slow client
+		benches.add(new Bench("header.parse.split") {
+			long op(int i) {
+				byte[] req = raw[i % raw.length];
+				int third = req.length / 3;
+				parser.reset();
+				readBuff.clear();
+				readBuff.put(req, 0, third);
+				boolean done = parser.parse(readBuff);
+				readBuff.put(req, third, third);
+				done |= parser.parse(readBuff);
+				readBuff.put(req, 2 * third, req.length - 2 * third);
+				done |= parser.parse(readBuff);
+				return done ? parser.getHeaderEnd() : -1;
+			}
+		});
+
+		benches.add(new Bench("header.toString") {
+			long op(int i) {
+				HTTPHeader resp = new HTTPHeader(200, "OK");
+				resp.setAttribute("Date", "Sun, 06 Nov 1994 08:49:37 GMT");
+				resp.setAttribute("Content-Type", "text/html; charset=UTF-8");
+				resp.setAttribute("Content-Length", Integer.toString(1000 + (i & 1023)));
+				resp.setAttribute("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+				resp.setAttribute("ETag", "\"5e1a3c2f-1f40\"");
+				resp.setAttribute("Connection", "keep-alive");
+				return resp.toString().getBytes(StandardCharsets.ISO_8859_1).length;
+			}
+		});
+
+		benches.add(new Bench("header.writer") {
+			long op(int i) {
+				HeaderWriter w = HeaderWriter.start(200, true);
+				w.field(HeaderWriter.CONTENT_TYPE, "text/html; charset=UTF-8")
+						.field(HeaderWriter.CONTENT_LENGTH, 1000 + (i & 1023))
+						.field(HeaderWriter.LAST_MODIFIED, "Sun, 06 Nov 1994 08:49:37 GMT")
+						.field(HeaderWriter.ETAG, "\"5e1a3c2f-1f40\"").end();
+				return w.toBuffer().remaining();
+			}
+		});
+
+		benches.add(new Bench("server.get400") {
+			long op(int i) {
+				HTTPResponse r = HTTPServer.get400(4, (i & 1) == 0);
+				return r.getStatus();
+			}
+		});
+
+		final String[] keys = {"server.root", "server.cache.size", "mime.text.css", "cache.control.images", "server.no.such.key"};
+		benches.add(new Bench("config.getSetting") {
+			long op(int i) {
+				String v = sc.getSetting(keys[i % keys.length]);
+				return v == null ? 0 : v.length();
+			}
+		});
+
+		benches.add(new Bench("config.getIntSetting") {
+			long op(int i) {
+				return sc.getIntSetting("server.cache.size");
+			}
+		});
+
+		System.out.printf("%-24s %12s %10s %12s %6s%n", "Benchmark", "ns/op", "+/-", "B/op", "GCs");
+		for(Bench b : benches) {
+			if(b.name.contains(filter))
+				measure(b, iterations);
+		}
+	}
+
+	/**
+	 * Warm up and time one benchmark, then print its results
+	 */
+	private static void measure(Bench b, int iterations) {
+		// size the batch so the clock is read rarely compared to the work
+		int batch = 1;
+		while(true) {
+			long t = System.nanoTime();
+			runBatch(b, batch);
+			if(System.nanoTime() - t >= BATCH_NS || batch >= (1 << 28))
+				break;
+			batch *= 2;
+		}
+
+		for(int i = 0; i < WARMUP_ITERATIONS; i++)
+			iteration(b, batch);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean alloc = (threads instanceof com.sun.management.ThreadMXBean)
+				? (com.sun.management.ThreadMXBean)threads : null;
+		long tid = Thread.currentThread().getId();
+
+		double[] nsPerOp = new double[iterations];
+		long ops = 0;
+		long bytes = alloc == null ? 0 : alloc.getThreadAllocatedBytes(tid);
+		long gcs = gcCount();
+		for(int i = 0; i < iterations; i++) {
+			long t = System.nanoTime();
+			long n = iteration(b, batch);
+			nsPerOp[i] = (double)(System.nanoTime() - t) / n;
+			ops += n;
+		}
+		bytes = alloc == null ? -1 : alloc.getThreadAllocatedBytes(tid) - bytes;
+		gcs = gcCount() - gcs;
+
+		double mean = 0;
+		for(double v : nsPerOp)
+			mean += v;
+		mean /= iterations;
+		double var = 0;
+		for(double v : nsPerOp)
+			var += (v - mean) * (v - mean);
+		double dev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+
+		String perOp = bytes < 0 ? "n/a" : String.format("%.1f", (double)bytes / ops);
+		System.out.printf("%-24s %12.1f %10.1f %12s %6d%n", b.name, mean, dev, perOp, gcs);
+	}
+
+	/**
+	 * Run batches for one iteration's worth of time
+	 * @return Number of ops run
+	 */
+	private static long iteration(Bench b, int batch) {
+		long start = System.nanoTime();
+		long ops = 0;
+		do {
+			runBatch(b, batch);
+			ops += batch;
+		} while(System.nanoTime() - start < ITERATION_NS);
+		return ops;
+	}
+
+	private static void runBatch(Bench b, int batch) {
+		long s = 0;
+		for(int i = 0; i < batch; i++)
+			s += b.op(i);
+		sink += s;
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			n += Math.max(0, gc.getCollectionCount());
+		return n;
+	}
+}
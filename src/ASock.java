@@ -7,7 +7,10 @@
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.NetworkChannel;
 
 public class ASock
 {	
@@ -20,16 +23,13 @@ public class ASock
 		System.out.println("CONFIG: port: " + sc.getSetting("server.port"));
 		System.out.println("CONFIG: root directory: " + sc.getSetting("server.root"));
 		System.out.println("CONFIG: index: " + sc.getSetting("server.index"));
+		System.out.println("CONFIG: engine: " + sc.getSetting("server.engine"));
+		System.out.println("CONFIG: threads: " + sc.getSetting("server.threads.model") + " x " + sc.getSetting("server.threads.count"));
 		
-		HTTPServer.initServer(sc);
+		start(sc, new InetSocketAddress(sc.getIntSetting("server.port")));
 		
 		System.out.println("Startup complete...");
 		
-		// TODO: error handling if parseInt() fails. Possibly do this in ServerConfig class
-		final AsynchronousServerSocketChannel listener = 
-				AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(Integer.parseInt(sc.getSetting("server.port"))));
-		
-		listener.accept(null, new Responder(listener));
 		while(true) {
 			try {
 				Thread.sleep(5000);
@@ -39,4 +39,66 @@ public class ASock
 		}
 
 	}
-}
+	
+	/**
+	 * Initialize the server and start accepting connections with the engine picked by
+	 * server.engine: async completion handlers, a virtual thread per connection, or selector
+	 * event loops
+	 * @param sc Server configuration
+	 * @param address Address to listen on, port 0 picks a free port
+	 * @return The listening channel, an AsynchronousServerSocketChannel, a ServerSocketChannel,
+	 *         or a ShardedListener if the async engine runs more than one server.shards
+	 * @throws IOException If the channel group or listener cannot be opened
+	 */
+	public static NetworkChannel start(ServerConfig sc, InetSocketAddress address) throws IOException {
+		AccessLog.init(sc);
+		HTTPServer.initServer(sc);
+		ServerExecutors.init(sc);
+		
+		String engine = sc.getSetting("server.engine");
+		if(engine.equalsIgnoreCase("virtual"))
+			return BlockingEngine.start(sc, address);
+		if(engine.equalsIgnoreCase("selector"))
+			return SelectorEngine.start(sc, address);
+		if(!engine.equalsIgnoreCase("async"))
+			System.out.println("WARNING: Unknown server.engine " + engine + ". Using async.");
+		
+		ASockSession.initSessions(sc);
+		int shards = Math.max(1, sc.getIntSetting("server.shards"));
+		int threads = sc.getIntSetting("server.threads.count");
+		if(threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		
+		// every shard has its own group, pool and responder, the kernel picks the shard that
+		// accepts each connection
+		AsynchronousServerSocketChannel[] listeners = new AsynchronousServerSocketChannel[shards];
+		for(int i = 0; i < shards; i++) {
+			AsynchronousChannelGroup group = ServerExecutors.openGroup(sc, Math.max(1, threads / shards));
+			AsynchronousServerSocketChannel listener = AsynchronousServerSocketChannel.open(group);
+			if(shards > 1) {
+				if(!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					System.out.println("WARNING: SO_REUSEPORT is not supported. Using one listener.");
+					shards = 1;
+					listeners = new AsynchronousServerSocketChannel[1];
+					group.shutdownNow();
+					group = ServerExecutors.openGroup(sc, threads);
+					listener = AsynchronousServerSocketChannel.open(group);
+				}
+				else {
+					listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+			}
+			// later shards join the port the first one got
+			listener.bind(i == 0 ? address : listeners[0].getLocalAddress(), sc.getIntSetting("server.backlog"));
+			
+			BufferPool pool = BufferPool.fromConfig(sc);
+			ServerMetrics.register(pool);
+			listener.accept(null, Responder.fromConfig(listener, pool, sc, shards));
+			listeners[i] = listener;
+		}
+		
+		if(shards == 1)
+			return listeners[0];
+		return new ShardedListener(listeners);
+	}
+}
\ No newline at end of file
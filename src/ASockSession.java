@@ -5,54 +5,114 @@
  * Desc: Handle asynchronous socket sessions
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 
 public class ASockSession implements CompletionHandler<Integer, Void>
 {
 	// socket channel to client
 	private AsynchronousSocketChannel as; // socket we are sending and receiving on
+	private SocketAddress client; // for the access log
 	
 	// input and output buffers
-	private static final int buffSize = 4096;
-	// TODO: StringBuilder....
-	private StringBuilder readBuff; // read accumulator
-	private ByteBuffer buff;
-	private byte[] writeByteArr;
-	
-	// for detecting the end of a message
-	private static final String[] messageTerminators = {"\n\n","\r\n\r\n"};
-	private int terminatorCount[];
+	private RequestCycle cycle; // read buffer, parser and body of the request being read
+	private BufferPool pool; // read and write buffers are borrowed from here
+	private Responder responder; // gets the session permit back on close
+	private ByteBuffer writeBuff; // direct buffer file data is read into, only held while writing
+	private ByteBuffer[] writeBuffs; // buffers of the gathering write in progress
+	private GatherHandler gatherHandler;
+	private static final int MAX_GATHER = 64; // buffers coalesced into one gathering write
+	private ByteBuffer bodyBuff; // read buffer for the rest of the body, only held while reading it
 	
 	// mode information
-	public static enum Mode{READ, WRITE, PROC, DONE, ERROR};
+	public static enum Mode{READ, BODY, WRITE, PROC, DONE, ERROR};
 	private Mode mode;
 	
-	// response to send in form of an InputStream; this will more than likely be a SequenceInputStream
-	private InputStream response;
+	// pipelined requests, answered in the order they arrived
+	private static int pipelineDepth = 16; // requests taken from the read buffer before answering them
+	private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>(); // not yet fully written, guarded by this
+	private final List<Pending> sending = new ArrayList<Pending>(); // handed to the write in progress
+	private boolean waiting; // writes wait for the handler of the first queued request, guarded by this
+	private int handling; // handlers running with a header that reads from buff, guarded by this
+	
+	// slow client protection
+	private ConnectionWatch timer;
+	private int requestCount; // number of requests completed on this connection
+	private int accepted; // number of requests taken from the read buffer on this connection
+	private boolean closeAfter; // a response that ends the connection has been sent
+	private volatile boolean closed;
+	
+	private long lastRead; // time of the latest read, pipelined requests arrived then
+	
+	/**
+	 * A request that has been taken from the read buffer. Its response is filled in by the
+	 * handler, possibly on another thread, and written once every request before it is done.
+	 * The response is guarded by the session.
+	 */
+	private static class Pending extends RequestCycle.Exchange {
+		boolean attached; // the handler's header reads from buff until it answers
+	}
+	
+	/**
+	 * Initialize the static settings shared by all sessions
+	 * @param sc Server configuration
+	 */
+	public static void initSessions(ServerConfig sc) {
+		RequestCycle.init(sc);
+		pipelineDepth = Math.max(1, sc.getIntSetting("server.pipeline.depth"));
+	}
 	
+	/**
+	 * Completion handler for gathering writes, these report a long instead of an int
+	 */
+	private class GatherHandler implements CompletionHandler<Long, Void> {
+		public void completed(Long written, Void a) {
+			ServerMetrics.bytesOut(written);
+			timer.progress(written);
+			ASockSession.this.completed(0, a);
+		}
+		public void failed(Throwable t, Void a) {
+			ASockSession.this.failed(t, a);
+		}
+	}
 
 	/**
 	 * Create a asynchronous socket session
 	 * @param a The socket we will be using
+	 * @param p Pool to borrow buffers from
+	 * @param r Responder that admitted this session
 	 */
-	public ASockSession(AsynchronousSocketChannel a) {
+	public ASockSession(AsynchronousSocketChannel a, BufferPool p, Responder r) {
 		as = a;
-		readBuff = new StringBuilder();
+		pool = p;
+		responder = r;
+		timer = new ConnectionWatch(a);
+		cycle = new RequestCycle(p, timer);
+		try {
+			client = a.getRemoteAddress();
+		}
+		catch(IOException e) {
+			client = null;
+		}
 		
-		buff = ByteBuffer.allocate(buffSize);
-		writeByteArr = new byte[buffSize];
+		writeBuff = null;
+		writeBuffs = null;
+		gatherHandler = new GatherHandler();
 		
 		mode = Mode.READ; // start out in read mode
-		
-		terminatorCount = new int[messageTerminators.length];
-		for(int i = 0; i < terminatorCount.length; i++)
-			terminatorCount[i] = 0;
+		requestCount = 0;
+		closed = false;
+		ServerMetrics.sessions(1);
 	}
 	
 	/**
@@ -66,13 +126,16 @@ public class ASockSession implements CompletionHandler<Integer, Void>
 			case READ:
 				continueRead(read, a);
 				break;
+			// reading the request body
+			case BODY:
+				continueBody(read, a);
+				break;
 			// if a write is in progress
 			case WRITE:
 				continueWrite(a);
 				break;
-			// time to process data
+			// waiting on a handler, answered() picks it up
 			case PROC:
-				handleProc(a);
 				break;
 			// do something when the interaction with the client is done
 			case DONE:
@@ -88,156 +151,504 @@ public class ASockSession implements CompletionHandler<Integer, Void>
 	 * Method required by interface, if a read/write fails, do this
 	 */
 	public void failed(Throwable t, Void a) {
-		System.out.println("ERROR: An error occured while performing " + getMode().name());
-		t.printStackTrace();
-		try {
-			as.close();
-		}
-		catch(IOException e) {
-			System.out.println("WARNING: Attempted to close previously closed connection.");
+		// the channel was closed because the session timed out, that is not an error
+		if(!timer.isTimedOut()) {
+			AccessLog.message("ERROR: An error occured while performing " + getMode().name(), t);
 		}
+		close();
 	}
 	
 	/**
 	 * Init the async read loop
 	 */
 	public void beginRead() {
-		as.read(buff, null, this);
+		cycle.watchHeader(requestCount > 0);
+		as.read(cycle.getBuffer(), null, this);
 	}
 	
 	/**
-	 * Continue reading if the message is long.
-	 * NOTE: Message should end with two of "\r\n"
+	 * Continue reading if the message is long. The parser picks up where it left off,
+	 * so the end of the header is found even when it is split across reads.
 	 * @param read Number of characters read
 	 * @param a
 	 */
 	private void continueRead(int read, Void a) {
+		ByteBuffer buff = cycle.getBuffer();
 
 		// did not read anything, skip processing...
 		if(read < 0) {
-			setMode(Mode.PROC);
-			completed(0,a);
+			// client closed a persistent connection between requests
+			if(requestCount > 0 && buff.position() == 0) {
+				handleDone();
+				return;
+			}
+			dispatch(a);
 			return;
 		}
 		
-		// add existing data to queue
-		buff.position(0);
-		int i, j;
-		char[] cb = new char[read];
-		boolean resetCount = false;
+		lastRead = System.nanoTime();
+		cycle.received(read, requestCount > 0);
 		
-		// detect if the end of the message was reached
-		for(i = 0; i < read; i++) {
-			cb[i] = (char)buff.get(i);
-			// TODO: possibly have a hashmap of all characters involved in null terminator
-			// TODO: possibly do input scanning with Scanner class
-			if(cb[i] == '\r' || cb[i] == '\n') {
-				resetCount = true;
-				for(j = 0; j < messageTerminators.length; j++) {
-					if(messageTerminators[j].charAt(terminatorCount[j]) == cb[i]) {
-						terminatorCount[j]++;
-						if(terminatorCount[j] == messageTerminators[j].length()) {
-							readBuff.append(new String(cb,0,i+1));
-							
-							// TODO: THIS DOES NOT ACCEPT CONTENT AFTER HEADERS (no payload)
-							// TODO: Payload handling here - be sure to add the rest of the buffer above
-
-							setMode(Mode.PROC);
-							completed(0,a);
-							return;
-						}
-					}
-					else {
-						terminatorCount[j] = 0;
-					}
+		// the body starts right after the header
+		if(cycle.getParser().parse(buff)) {
+			beginBody(a);
+			return;
+		}
+		
+		// stop reading once the header is bad or too large for the buffer
+		if(cycle.getParser().isError() || !buff.hasRemaining()) {
+			dispatch(a);
+			return;
+		}
+		
+		as.read(buff, null, this);
+	}
+	
+	/**
+	 * Start reading the body of a parsed request, if it has one and it is not all here yet
+	 * @param a
+	 */
+	private void beginBody(final Void a) {
+		if(!cycle.frame()) {
+			dispatch(a);
+			return;
+		}
+		
+		// requests ahead of this one are answered first, then this one is parsed again and
+		// its body read after them, so the handler opens and gets the body only once
+		if(hasQueued()) {
+			cycle.defer();
+			beginWrite(a);
+			return;
+		}
+		
+		if(cycle.openBody()) {
+			dispatch(a);
+			return;
+		}
+		
+		setMode(Mode.BODY);
+		bodyBuff = pool.acquire(RequestCycle.writeChunk);
+		
+		// a client waiting for 100 Continue has not sent any of the body yet
+		if(cycle.expectsContinue()) {
+			final ByteBuffer cont = ByteBuffer.wrap(RequestCycle.CONTINUE);
+			as.write(cont, null, new CompletionHandler<Integer, Void>() {
+				public void completed(Integer written, Void v) {
+					ServerMetrics.bytesOut(written);
+					if(cont.hasRemaining())
+						as.write(cont, null, this);
+					else
+						as.read(bodyBuff, null, ASockSession.this);
 				}
+				public void failed(Throwable t, Void v) {
+					ASockSession.this.failed(t, v);
+				}
+			});
+			return;
+		}
+		
+		as.read(bodyBuff, null, this);
+	}
+	
+	/**
+	 * Decode the body bytes that have been read into the body buffer
+	 * @param read Number of bytes read
+	 * @param a
+	 */
+	private void continueBody(int read, Void a) {
+		// the client gave up part way through the body, there is no one to answer
+		if(read < 0) {
+			close();
+			return;
+		}
+		
+		lastRead = System.nanoTime();
+		cycle.received(read, requestCount > 0);
+		
+		bodyBuff.flip();
+		if(cycle.decodeBody(bodyBuff)) {
+			// whatever follows the body is the next request
+			if(!cycle.keepRest(bodyBuff))
+				pool.release(bodyBuff);
+			bodyBuff = null;
+			dispatch(a);
+			return;
+		}
+		bodyBuff.clear();
+		
+		as.read(bodyBuff, null, this);
+	}
+	
+	/**
+	 * Hand the request that has been received to its handler and queue it for writing. If
+	 * the connection stays open and the next request is already in the read buffer, it is
+	 * taken right away, so pipelined requests are handled at the same time.
+	 * @param a
+	 */
+	private void dispatch(final Void a) {
+		/* TODO: Chromium and possibly other browsers open a connection but send 
+		 * 		 no request (usually where favicon.ico request would be)... 
+		 */
+		setMode(Mode.PROC);
+		accepted++;
+		final Pending p = cycle.take(new Pending(), accepted);
+		if(p.response != null) {
+			enqueue(p);
+			beginWrite(a);
+			return;
+		}
+		
+		// the header reads from the read buffer, which is about to be reused for the
+		// requests behind this one
+		boolean more = p.keepAlive && cycle.hasMore();
+		if(more)
+			p.header.detach();
+		else
+			p.attached = true;
+		enqueue(p);
+		
+		// the handler decides where its work runs, this thread goes on with the next
+		// request and the response is written from whichever thread finishes it
+		p.respond().whenComplete(new BiConsumer<HTTPResponse, Throwable>() {
+			public void accept(HTTPResponse r, Throwable t) {
+				answered(p, r != null ? r : HTTPServer.get500(0), a);
+			}
+		});
+		
+		if(more) {
+			nextRequest(a);
+			return;
+		}
+		beginWrite(a);
+	}
+	
+	/**
+	 * Check if earlier requests are still waiting to be answered
+	 * @return True if the write queue is not empty
+	 */
+	private synchronized boolean hasQueued() {
+		return !queue.isEmpty();
+	}
+	
+	/**
+	 * Add a request to the end of the write queue
+	 * @param p The request
+	 */
+	private synchronized void enqueue(Pending p) {
+		queue.add(p);
+		if(p.attached)
+			handling++;
+	}
+	
+	/**
+	 * A handler has answered. If the writes were waiting on this response they go on.
+	 * @param p Request that was answered
+	 * @param r Its response
+	 * @param a
+	 */
+	private void answered(Pending p, HTTPResponse r, Void a) {
+		boolean resume;
+		synchronized(this) {
+			p.response = r;
+			if(p.attached) {
+				p.attached = false;
+				handling--;
 			}
-			else if(resetCount) {
-				for(j = 0; j < terminatorCount.length; j++)
-					terminatorCount[j] = 0;
+			if(closed) {
+				p.close();
+				// close() left the read buffer to the last handler that was reading it
+				if(handling == 0)
+					cycle.releaseBuffer();
+				return;
 			}
+			resume = waiting && queue.peek() == p;
+			if(resume)
+				waiting = false;
 		}
+		if(resume)
+			beginWrite(a);
+	}
+	
+	/**
+	 * Move the rest of the read buffer to the front and take the next request from it
+	 * @param a
+	 */
+	private void nextRequest(Void a) {
+		takeNext();
 		
-		buff.position(0);
-		readBuff.append(new String(cb));
+		// answer what has been taken so far before taking more
+		if(queue.size() >= pipelineDepth || !cycle.hasBuffered()) {
+			beginWrite(a);
+			return;
+		}
 		
-		// ready buffer for new data
-		buff.clear();
-		as.read(buff, null, this);
+		if(cycle.getParser().parse(cycle.getBuffer())) {
+			beginBody(a);
+			return;
+		}
+		// a bad or partial request is dealt with once the ones before it are answered
+		beginWrite(a);
+	}
+	
+	/**
+	 * Drop the request that was taken from the read buffer and get ready to parse the next
+	 */
+	private void takeNext() {
+		cycle.next(lastRead);
+		setMode(Mode.READ);
 	}
 	
 	/**
-	 * Continue writing to the client.
+	 * Continue writing to the client. Buffers from a partial write are finished first,
+	 * then the next set of buffers is pulled from the queued responses. Pulling file data
+	 * may wait on the disk, so it is handed to the blocking pool instead of running on this
+	 * thread.
 	 * @param a
 	 */
-	private void continueWrite(Void a) {
+	private void continueWrite(final Void a) {
 		//System.out.println("LOG: Now writing back to client...");
 		
-		try {
-			buff.position(0); // reset from last use
-			int size = response.read(writeByteArr);
+		if(!RequestCycle.hasRemaining(writeBuffs)) {
+			finishSent();
+			if(closeAfter) {
+				setMode(Mode.DONE);
+				handleDone();
+				return;
+			}
 			
-			// if size < 0, we reached the end of the stream
-			// NOTE: SequenceInputStream does NOT appear to do unbroken reads across streams
-			if(size < 0) {
-				response.close();
+			Pending head;
+			synchronized(this) {
+				head = queue.peek();
+				if(head != null && head.response == null) {
+					// answered() starts writing again
+					waiting = true;
+					setMode(Mode.PROC);
+					timer.unwatch();
+					return;
+				}
+			}
+			
+			// every queued response has been sent
+			if(head == null) {
+				pool.release(writeBuff);
+				writeBuff = null;
+				writeBuffs = null;
 				setMode(Mode.DONE);
-				completed(0,a);
+				handleDone();
 				return;
 			}
 			
-			buff.limit(size);
+			if(head.response.usesScratch()) {
+				try {
+					ServerExecutors.blocking().execute(new Runnable() {
+						public void run() {
+							writeNext(a);
+						}
+					});
+					return;
+				}
+				catch(RejectedExecutionException e) {
+					// blocking pool is saturated, read the chunk here rather than fail the response
+				}
+			}
+		}
+		
+		writeNext(a);
+	}
+	
+	/**
+	 * Write the rest of a partial write, or the next buffers of the queued responses
+	 * @param a
+	 */
+	private void writeNext(Void a) {
+		try {
+			if(!RequestCycle.hasRemaining(writeBuffs))
+				writeBuffs = gather();
 			
-			buff.put(writeByteArr,0,size);
-			buff.position(0); // reset buffer position
+			// the responses at the head were done, see what is next
+			if(writeBuffs == null) {
+				continueWrite(a);
+				return;
+			}
 			
-			//System.out.println(new String(buff.array(),0,size));
-			as.write(buff, null, this);
+			as.write(writeBuffs, 0, writeBuffs.length, 0, TimeUnit.MILLISECONDS, null, gatherHandler);
 		}
 		catch(Exception e) {
-			System.out.println("ERROR: Input stream read failed.\n" + e.getMessage() + "\n");
-			e.printStackTrace();
+			AccessLog.message("ERROR: Response read failed.", e);
 			// TODO: error mode needs to be set up
 			//setMode(Mode.ERROR);
+			writeBuffs = null;
 			setMode(Mode.DONE);
-			completed(0,a);
+			close();
+		}
+	}
+	
+	/**
+	 * Collect the next buffers to write from the responses at the head of the queue. Small
+	 * responses that are ready are coalesced into one gathering write. A response with file
+	 * or stream data has one chunk read into the scratch buffer per write, so it ends the set.
+	 * @return Buffers to write, null if the head has nothing more to send
+	 * @throws IOException If reading a response body fails
+	 */
+	private ByteBuffer[] gather() throws IOException {
+		List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+		long bytes = 0;
+		
+		while(out.size() < MAX_GATHER && bytes < RequestCycle.writeChunk) {
+			Pending p;
+			synchronized(this) {
+				p = queue.peek();
+				if(p == null || p.response == null)
+					break;
+			}
+			if(p.writeStart == 0) {
+				p.writeStart = System.nanoTime();
+				if(p.response.isCloseAfter())
+					p.keepAlive = false;
+			}
+			
+			boolean scratch = p.response.usesScratch();
+			if(scratch && !out.isEmpty())
+				break;
+			if(scratch && writeBuff == null)
+				writeBuff = pool.acquire(RequestCycle.writeChunk);
+			
+			ByteBuffer[] bs = p.response.nextWrite(scratch ? writeBuff : null);
+			if(bs == null) {
+				// the whole response has been handed out, it is done once this write is
+				synchronized(this) {
+					queue.poll();
+				}
+				sending.add(p);
+				// nothing after a response that closes the connection is sent
+				if(!p.keepAlive)
+					break;
+				continue;
+			}
+			
+			for(int i = 0; i < bs.length; i++) {
+				out.add(bs[i]);
+				p.sentBytes += bs[i].remaining();
+				bytes += bs[i].remaining();
+			}
+			if(scratch)
+				break;
+		}
+		
+		if(out.isEmpty())
+			return null;
+		return out.toArray(new ByteBuffer[out.size()]);
+	}
+	
+	/**
+	 * Record the responses that the last write finished
+	 */
+	private void finishSent() {
+		for(int i = 0; i < sending.size(); i++) {
+			Pending p = sending.get(i);
+			p.record(client);
+			p.close();
+			requestCount++;
+			if(!p.keepAlive)
+				closeAfter = true;
 		}
+		sending.clear();
 	}
 	
 	/**
 	 * Perform this once a transaction to the client has completed
 	 */
-	private void handleDone() {	
+	private void handleDone() {
+		// go back to reading if the client wants another request on this connection
+		if(!closeAfter && mode == Mode.DONE && requestCount > 0) {
+			resetRequest();
+			return;
+		}
+		
 		//System.out.println("LOG: Closing connection.");
+		close();
+	}
+	
+	/**
+	 * Close the connection and give the buffers back to the pool
+	 */
+	private void close() {
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+		}
+		timer.stop();
+		ServerMetrics.sessions(-1);
+		
+		// handlers still running drop their response in answered()
+		synchronized(this) {
+			for(Pending p : queue) {
+				if(p.response != null)
+					p.close();
+			}
+			queue.clear();
+			
+			// a handler may still be reading its header from the read buffer, it must not go
+			// to another connection until that handler is done
+			if(handling == 0)
+				cycle.releaseBuffer();
+		}
+		for(int i = 0; i < sending.size(); i++)
+			sending.get(i).close();
+		sending.clear();
+		
+		cycle.close();
+		pool.release(writeBuff);
+		writeBuff = null;
+		pool.release(bodyBuff);
+		bodyBuff = null;
+		
 		try {
 			as.close();
 		}
 		catch(IOException e) {
-			System.out.println("WARNING: Attempted to close previously closed connection.");
+			AccessLog.message("WARNING: Attempted to close previously closed connection.", null);
 		}
+		
+		responder.release();
 	}
 	
 	/**
-	 * Process the data that has been received
+	 * Start sending the queued responses
 	 * @param a
 	 */
-	private void handleProc(Void a) {
-		/* TODO: Chromium and possibly other browsers open a connection but send 
-		 * 		 no request (usually where favicon.ico request would be)... 
-		 */
-		if(readBuff.length() > 0) {
-			//System.out.println("LOG: Now processing...");
-			response = HTTPServer.respond(new HTTPHeader(readBuff.toString()));
-		}
-		else {
-			System.out.println("WARNING: Client appears to have opened a connection but made no request!");
-			response = new ByteArrayInputStream(HTTPServer.get400(0).getBytes());
+	private void beginWrite(Void a) {
+		timer.watch(0, true);
+		setMode(Mode.WRITE);
+		continueWrite(a);
+	}
+	
+	/**
+	 * Clear the per-request state and go on with the next request on this connection. Part
+	 * of it may already be in the read buffer.
+	 */
+	private void resetRequest() {
+		writeBuffs = null;
+		takeNext();
+		if(!cycle.hasBuffered()) {
+			beginRead();
+			return;
 		}
 		
-		// TODO: have a Mode.ERROR for handling bad requests and headers that are too long
-		setMode(Mode.WRITE);
-		// trigger completion call since this particular part is synchronous
-		completed(0,a);
+		HTTPRequestParser parser = cycle.getParser();
+		ByteBuffer buff = cycle.getBuffer();
+		if(parser.parse(buff)) {
+			beginBody(null);
+			return;
+		}
+		if(parser.isError() || !buff.hasRemaining()) {
+			dispatch(null);
+			return;
+		}
+		// only part of the next request is here, wait for the rest
+		beginRead();
 	}
 	
 	/**
@@ -0,0 +1,347 @@
+/*
+ * File: AccessLog.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Asynchronous access and error log. Sessions put entries in a bounded lock-free ring
+ *       (one CAS per entry, the records are preallocated and reused) and a background thread
+ *       formats them and writes them to the log file in large batches. When the ring is full
+ *       the entry is dropped and counted, so a slow disk never holds up an I/O thread. The
+ *       file is rotated once it passes a size limit (access.log -> access.log.1 -> ...).
+ *       Error messages go through the same ring and are printed to the console by the writer.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class AccessLog implements Runnable {
+
+	private static AccessLog log; // null until init(), or if there is no log file
+
+	/**
+	 * One log entry, reused once the writer has consumed it
+	 */
+	private static final class Record {
+		long time; // ms since the epoch
+		SocketAddress client;
+		String method;
+		String path;
+		int status;
+		long bytes;
+		long read, proc, write, total; // ns
+		String message; // error text instead of an access entry, null for access entries
+	}
+
+	private final Record[] ring;
+	private final AtomicLongArray sequence; // per slot: free for producer n when n, full when n + 1
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(); // next slot for producers
+	private long head; // next slot for the writer, only used by the writer thread
+	private final LongAdder dropped = new LongAdder();
+
+	private final File file;
+	private final long maxSize;
+	private final int keep;
+	private FileChannel out;
+	private long size;
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(65536);
+	private final StringBuilder line = new StringBuilder(256);
+
+	/**
+	 * Create a log and start its writer thread
+	 * @param f Log file, null to only print error messages
+	 * @param entries Ring size, rounded up to a power of two
+	 * @param maxSize Bytes written before the file is rotated, 0 to never rotate
+	 * @param keep Rotated files kept
+	 */
+	public AccessLog(File f, int entries, long maxSize, int keep) {
+		int n = 1;
+		while(n < entries)
+			n <<= 1;
+		ring = new Record[n];
+		sequence = new AtomicLongArray(n);
+		for(int i = 0; i < n; i++) {
+			ring[i] = new Record();
+			sequence.set(i, i);
+		}
+		mask = n - 1;
+
+		file = f;
+		this.maxSize = maxSize;
+		this.keep = keep;
+		if(file != null)
+			open();
+
+		Thread writer = new Thread(this, "asock-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Start the shared log from the server.log settings
+	 * @param sc Server configuration
+	 */
+	public static void init(ServerConfig sc) {
+		String path = sc.getSetting("server.log.access");
+		File f = path.equalsIgnoreCase("off") ? null : new File(path);
+		log = new AccessLog(f, sc.getIntSetting("server.log.buffer"), sc.getIntSetting("server.log.size"),
+				sc.getIntSetting("server.log.keep"));
+	}
+
+	/**
+	 * Log a response that has been sent. Never blocks; the entry is dropped if the log is behind.
+	 * @param client Address of the client
+	 * @param method Request method, null if the request could not be parsed
+	 * @param path Request location, null if the request could not be parsed
+	 * @param status Status code sent
+	 * @param bytes Bytes sent
+	 * @param read ns reading the header
+	 * @param proc ns building the response
+	 * @param write ns sending the response
+	 * @param total ns from first byte to last
+	 */
+	public static void access(SocketAddress client, String method, String path, int status, long bytes,
+			long read, long proc, long write, long total) {
+		AccessLog l = log;
+		if(l == null || l.file == null)
+			return;
+
+		long pos = l.claim();
+		if(pos < 0)
+			return;
+		Record r = l.ring[(int)(pos & l.mask)];
+		r.time = System.currentTimeMillis();
+		r.client = client;
+		r.method = method;
+		r.path = path;
+		r.status = status;
+		r.bytes = bytes;
+		r.read = read;
+		r.proc = proc;
+		r.write = write;
+		r.total = total;
+		r.message = null;
+		l.publish(pos);
+	}
+
+	/**
+	 * Print a message to the console from the writer thread
+	 * @param msg Message
+	 * @param t Exception to print the stack trace of, may be null
+	 */
+	public static void message(String msg, Throwable t) {
+		if(t != null) {
+			StringWriter sw = new StringWriter();
+			t.printStackTrace(new PrintWriter(sw));
+			msg = msg + "\n" + sw;
+		}
+
+		AccessLog l = log;
+		if(l == null) {
+			// not started yet, nothing to queue on
+			System.out.println(msg);
+			return;
+		}
+
+		long pos = l.claim();
+		if(pos < 0)
+			return;
+		Record r = l.ring[(int)(pos & l.mask)];
+		r.time = System.currentTimeMillis();
+		r.client = null;
+		r.message = msg;
+		l.publish(pos);
+	}
+
+	/**
+	 * @return Entries dropped because the ring was full
+	 */
+	public static long getDropped() {
+		AccessLog l = log;
+		return l == null ? 0 : l.dropped.sum();
+	}
+
+	/**
+	 * Claim the next free slot
+	 * @return Slot sequence number, -1 if the ring is full
+	 */
+	private long claim() {
+		while(true) {
+			long pos = tail.get();
+			long seq = sequence.get((int)(pos & mask));
+			if(seq == pos) {
+				if(tail.compareAndSet(pos, pos + 1))
+					return pos;
+			}
+			else if(seq < pos) {
+				dropped.increment();
+				return -1;
+			}
+			// another producer took this slot, try the next
+		}
+	}
+
+	/**
+	 * Hand a filled slot to the writer, it picks it up on its next pass
+	 */
+	private void publish(long pos) {
+		sequence.lazySet((int)(pos & mask), pos + 1);
+	}
+
+	/**
+	 * Writer thread: format everything queued into the batch buffer, write it, then wait
+	 */
+	public void run() {
+		while(true) {
+			boolean any = false;
+			while(true) {
+				int idx = (int)(head & mask);
+				if(sequence.get(idx) != head + 1)
+					break;
+				write(ring[idx]);
+				ring[idx].client = null;
+				ring[idx].message = null;
+				sequence.lazySet(idx, head + ring.length);
+				head++;
+				any = true;
+			}
+			flush();
+			if(!any)
+				LockSupport.parkNanos(10000000L); // 10 ms, entries wait at most this long
+		}
+	}
+
+	/**
+	 * Format one record into the batch, writing the batch out first if it is full
+	 */
+	private void write(Record r) {
+		if(r.message != null) {
+			System.out.println(r.message);
+			return;
+		}
+
+		StringBuilder b = line;
+		b.setLength(0);
+		b.append("time=").append(HTTPDate.formatISO(r.time));
+		b.append(" client=");
+		if(r.client instanceof InetSocketAddress)
+			b.append(((InetSocketAddress)r.client).getAddress().getHostAddress());
+		else
+			b.append(r.client);
+		b.append(" method=").append(r.method == null ? "-" : r.method);
+		b.append(" path=\"");
+		if(r.path == null)
+			b.append('-');
+		else
+			escape(b, r.path);
+		b.append("\" status=").append(r.status);
+		b.append(" bytes=").append(r.bytes);
+		b.append(" read_ms=");
+		millis(b, r.read);
+		b.append(" proc_ms=");
+		millis(b, r.proc);
+		b.append(" write_ms=");
+		millis(b, r.write);
+		b.append(" total_ms=");
+		millis(b, r.total);
+		b.append('\n');
+
+		if(batch.remaining() < b.length())
+			flush();
+		if(batch.remaining() < b.length())
+			return; // longer than the whole batch, not worth keeping
+		for(int i = 0; i < b.length(); i++)
+			batch.put((byte)b.charAt(i));
+	}
+
+	/**
+	 * Write the batch to the file, rotating first if it would go over the size limit
+	 */
+	private void flush() {
+		if(batch.position() == 0 || out == null) {
+			batch.clear();
+			return;
+		}
+		batch.flip();
+		try {
+			if(maxSize > 0 && size > 0 && size + batch.remaining() > maxSize)
+				rotate();
+			while(batch.hasRemaining())
+				size += out.write(batch);
+		}
+		catch(IOException e) {
+			System.out.println("ERROR: Could not write access log: " + e.getMessage());
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Shift the rotated files up by one and start a new log
+	 */
+	private void rotate() throws IOException {
+		out.close();
+		out = null;
+		new File(file.getPath() + "." + keep).delete();
+		for(int i = keep - 1; i >= 1; i--)
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		if(keep > 0)
+			file.renameTo(new File(file.getPath() + ".1"));
+		else
+			file.delete();
+		open();
+	}
+
+	private void open() {
+		try {
+			out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			size = out.size();
+		}
+		catch(IOException e) {
+			System.out.println("ERROR: Could not open access log " + file.getPath() + ": " + e.getMessage());
+			out = null;
+		}
+	}
+
+	/**
+	 * Append a duration in ms with microsecond precision
+	 */
+	private static void millis(StringBuilder b, long nanos) {
+		long us = nanos / 1000;
+		b.append(us / 1000).append('.');
+		long frac = us % 1000;
+		if(frac < 100)
+			b.append('0');
+		if(frac < 10)
+			b.append('0');
+		b.append(frac);
+	}
+
+	/**
+	 * Append a path with quotes, control characters and anything outside ASCII escaped
+	 */
+	private static void escape(StringBuilder b, String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				b.append('\\').append(c);
+			}
+			else if(c < 0x20 || c > 0x7e) {
+				b.append("\\x").append(Character.forDigit((c >> 4) & 0xf, 16)).append(Character.forDigit(c & 0xf, 16));
+			}
+			else {
+				b.append(c);
+			}
+		}
+	}
+}
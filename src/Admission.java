@@ -0,0 +1,84 @@
+/*
+ * File: Admission.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: What every engine does with a connection once server.connections.max sessions are
+ *       open. server.connections.full picks between answering it with a 503 and closing it
+ *       (reject), or not accepting until a session closes (pause). The engines keep their own
+ *       session counts; this holds the policy setting and the 503 path they share.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+
+public class Admission {
+
+	private static final long REJECT_TIMEOUT = 5; // seconds to write the 503 of an async connection
+
+	/**
+	 * Read the server.connections.full policy
+	 * @param sc Server configuration
+	 * @return True to stop accepting while full, false to answer 503
+	 */
+	public static boolean pauseWhenFull(ServerConfig sc) {
+		String full = sc.getSetting("server.connections.full");
+		if(!full.equalsIgnoreCase("reject") && !full.equalsIgnoreCase("pause"))
+			System.out.println("WARNING: Unknown server.connections.full " + full + ". Using reject.");
+		return full.equalsIgnoreCase("pause");
+	}
+
+	/**
+	 * Answer a connection with the 503 page and close it, without reading the request. The
+	 * page is written once without blocking so a client that does not read cannot hold up
+	 * the accept thread.
+	 * @param c Accepted connection
+	 */
+	public static void reject(SocketChannel c) {
+		ServerMetrics.rejected();
+		try {
+			c.configureBlocking(false);
+			c.write(HTTPServer.get500(3).nextWrite(null));
+		}
+		catch(IOException e) {
+			// closed below
+		}
+		closeQuietly(c);
+	}
+
+	/**
+	 * Answer a connection with the 503 page and close it, without reading the request
+	 * @param c Accepted connection
+	 */
+	public static void reject(final AsynchronousSocketChannel c) {
+		ServerMetrics.rejected();
+		try {
+			ByteBuffer[] out = HTTPServer.get500(3).nextWrite(null);
+			c.write(out, 0, out.length, REJECT_TIMEOUT, TimeUnit.SECONDS, null, new CompletionHandler<Long, Void>() {
+				public void completed(Long written, Void a) {
+					closeQuietly(c);
+				}
+				public void failed(Throwable t, Void a) {
+					closeQuietly(c);
+				}
+			});
+		}
+		catch(IOException e) {
+			closeQuietly(c);
+		}
+	}
+
+	private static void closeQuietly(Channel c) {
+		try {
+			c.close();
+		}
+		catch(IOException e) {
+			// already closed
+		}
+	}
+}
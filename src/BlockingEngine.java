@@ -0,0 +1,115 @@
+/*
+ * File: BlockingEngine.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Second engine, picked with server.engine=virtual. One thread accepts connections from
+ *       a plain ServerSocketChannel and every connection gets its own (virtual) thread that
+ *       reads and writes with ordinary blocking calls. Requests go through the same parser,
+ *       handlers and responses as the async engine; only the I/O model differs. Admission
+ *       follows server.connections.max and server.connections.full like the Responder.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+
+public class BlockingEngine implements Runnable {
+
+	private final ServerSocketChannel listener;
+	private final BufferPool pool; // buffers shared by all sessions of this listener
+	private final ThreadFactory threads; // one thread per connection
+	private final Semaphore permits; // free session slots, null for no limit
+	private final boolean pauseWhenFull; // stop accepting instead of rejecting
+
+	/**
+	 * Create the engine for a bound listener
+	 * @param s Listening channel
+	 * @param p Pool sessions borrow their buffers from
+	 * @param max Most sessions open at once, 0 for no limit
+	 * @param pause True to stop accepting while full, false to answer 503
+	 */
+	public BlockingEngine(ServerSocketChannel s, BufferPool p, int max, boolean pause) {
+		listener = s;
+		pool = p;
+		threads = ServerExecutors.connectionThreads();
+		permits = max > 0 ? new Semaphore(max) : null;
+		pauseWhenFull = pause;
+	}
+
+	/**
+	 * Bind the listener and start the accept thread
+	 * @param sc Server configuration
+	 * @param address Address to listen on, port 0 picks a free port
+	 * @return The listening channel
+	 * @throws IOException If the listener cannot be opened
+	 */
+	public static ServerSocketChannel start(ServerConfig sc, InetSocketAddress address) throws IOException {
+		RequestCycle.init(sc);
+		ServerSocketChannel listener = ServerSocketChannel.open().bind(address, sc.getIntSetting("server.backlog"));
+
+		// every connection has its own short lived thread, buffers go straight back to the
+		// shared queues so the next connection can have them
+		BufferPool pool = BufferPool.fromConfig(sc, 0);
+		ServerMetrics.register(pool);
+
+		BlockingEngine e = new BlockingEngine(listener, pool, sc.getIntSetting("server.connections.max"),
+				Admission.pauseWhenFull(sc));
+
+		Thread t = new Thread(e, "asock-accept");
+		t.setDaemon(true);
+		t.start();
+		return listener;
+	}
+
+	/**
+	 * Accept connections until the listener is closed
+	 */
+	public void run() {
+		while(listener.isOpen()) {
+			boolean held = false;
+			try {
+				// while full in pause mode the kernel listen backlog holds new connections
+				if(pauseWhenFull && permits != null) {
+					permits.acquire();
+					held = true;
+				}
+
+				SocketChannel c = listener.accept();
+				ServerMetrics.accepted();
+
+				if(!held && permits != null && !permits.tryAcquire()) {
+					Admission.reject(c);
+					continue;
+				}
+				held = false;
+				threads.newThread(new BlockingSession(c, pool, this)).start();
+			}
+			catch(ClosedChannelException e) {
+				break;
+			}
+			catch(InterruptedException e) {
+				break;
+			}
+			catch(IOException e) {
+				AccessLog.message("ERROR: Could not accept a connection.", e);
+			}
+			finally {
+				if(held)
+					permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Give back the permit of a session that has closed
+	 */
+	public void release() {
+		if(permits != null)
+			permits.release();
+	}
+}
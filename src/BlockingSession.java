@@ -0,0 +1,222 @@
+/*
+ * File: BlockingSession.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: One connection of the virtual thread engine. The whole life of the connection runs
+ *       top to bottom on its own thread: read a header, read the body, get the response from
+ *       the handlers, write it, and go around again while the connection is kept alive.
+ *       Timeouts work as in ASockSession; the ConnectionWatch closes the channel and the
+ *       blocked read or write fails.
+ */
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+public class BlockingSession implements Runnable {
+
+	private final SocketChannel ch;
+	private SocketAddress client; // for the access log
+	private final BufferPool pool;
+	private final BlockingEngine engine; // gets the session permit back on close
+	private final ConnectionWatch timer;
+	private final RequestCycle cycle; // read buffer, parser and body of the current request
+	private ByteBuffer writeBuff; // buffer file data is read into, only held while writing
+	private RequestCycle.Exchange current; // request being answered, null between requests
+	private int requestCount; // number of requests completed on this connection
+
+	/**
+	 * Create a session
+	 * @param c Accepted connection, in blocking mode
+	 * @param p Pool to borrow buffers from
+	 * @param e Engine that admitted this session
+	 */
+	public BlockingSession(SocketChannel c, BufferPool p, BlockingEngine e) {
+		ch = c;
+		pool = p;
+		engine = e;
+		timer = new ConnectionWatch(c);
+		cycle = new RequestCycle(p, timer);
+		try {
+			client = c.getRemoteAddress();
+		}
+		catch(IOException ex) {
+			client = null;
+		}
+	}
+
+	/**
+	 * Serve requests until the connection is closed
+	 */
+	public void run() {
+		ServerMetrics.sessions(1);
+		try {
+			cycle.getBuffer();
+			while(serve())
+				requestCount++;
+		}
+		catch(IOException e) {
+			// the channel was closed because the session timed out, that is not an error
+			if(!timer.isTimedOut())
+				AccessLog.message("ERROR: An error occured while serving a connection", e);
+		}
+		finally {
+			close();
+		}
+	}
+
+	/**
+	 * Read one request and send its response
+	 * @return True if the connection is kept open for another request
+	 * @throws IOException If reading from or writing to the client fails
+	 */
+	private boolean serve() throws IOException {
+		// a pipelined request may already be here, behind the one that was answered
+		cycle.next(System.nanoTime());
+		cycle.watchHeader(requestCount > 0);
+
+		HTTPRequestParser parser = cycle.getParser();
+		ByteBuffer buff = cycle.getBuffer();
+		boolean parsed = buff.position() > 0 && parser.parse(buff);
+		// stop reading once the header is bad or too large for the buffer
+		while(!parsed && !parser.isError() && buff.hasRemaining()) {
+			int read = ch.read(buff);
+			if(read < 0) {
+				// client closed a persistent connection between requests
+				if(requestCount > 0 && buff.position() == 0)
+					return false;
+				break;
+			}
+			cycle.received(read, requestCount > 0);
+			parsed = parser.parse(buff);
+		}
+		// the client gave up part way through the body, there is no one to answer
+		if(parsed && cycle.frame() && !readBody())
+			return false;
+
+		current = cycle.take(new RequestCycle.Exchange(), requestCount + 1);
+		// this thread just waits, async handlers and the blocking pool run as they do for
+		// the async engine
+		if(current.response == null)
+			current.response = current.respond().join();
+
+		boolean keepAlive = current.keepAlive && !current.response.isCloseAfter();
+		return write() && keepAlive;
+	}
+
+	/**
+	 * Read the body of a parsed request. Whatever is read past the body is kept for the
+	 * next request.
+	 * @return True if the body was read or failed, false if the client closed the connection
+	 * @throws IOException If reading from the client fails
+	 */
+	private boolean readBody() throws IOException {
+		if(cycle.openBody())
+			return true;
+
+		// a client waiting for 100 Continue has not sent any of the body yet
+		if(cycle.expectsContinue()) {
+			ByteBuffer cont = ByteBuffer.wrap(RequestCycle.CONTINUE);
+			while(cont.hasRemaining())
+				ServerMetrics.bytesOut(ch.write(cont));
+		}
+
+		ByteBuffer in = pool.acquire(RequestCycle.writeChunk);
+		try {
+			while(true) {
+				in.clear();
+				int read = ch.read(in);
+				if(read < 0)
+					return false;
+				cycle.received(read, requestCount > 0);
+
+				in.flip();
+				if(cycle.decodeBody(in)) {
+					// whatever follows the body is the next request
+					if(cycle.keepRest(in))
+						in = null;
+					return true;
+				}
+			}
+		}
+		finally {
+			pool.release(in);
+		}
+	}
+
+	/**
+	 * Send the response of the current request. File and stream data is read into the
+	 * scratch buffer on this thread.
+	 * @return True if the whole response was sent
+	 * @throws IOException If writing to the client fails
+	 */
+	private boolean write() throws IOException {
+		// closed below whatever happens
+		RequestCycle.Exchange x = current;
+		current = null;
+		HTTPResponse response = x.response;
+		x.writeStart = System.nanoTime();
+		timer.watch(0, true);
+		try {
+			while(true) {
+				if(writeBuff == null && response.usesScratch())
+					writeBuff = pool.acquire(RequestCycle.writeChunk);
+				ByteBuffer[] out;
+				try {
+					out = response.nextWrite(writeBuff);
+				}
+				catch(IOException e) {
+					AccessLog.message("ERROR: Response read failed.", e);
+					return false;
+				}
+				// the whole response has been sent
+				if(out == null)
+					break;
+
+				while(RequestCycle.hasRemaining(out)) {
+					long written = ch.write(out);
+					ServerMetrics.bytesOut(written);
+					timer.progress(written);
+					x.sentBytes += written;
+				}
+			}
+		}
+		finally {
+			x.close();
+			pool.release(writeBuff);
+			writeBuff = null;
+		}
+
+		timer.unwatch();
+		x.record(client);
+		return true;
+	}
+
+	/**
+	 * Close the connection and give the buffers back to the pool
+	 */
+	private void close() {
+		timer.stop();
+		ServerMetrics.sessions(-1);
+
+		if(current != null) {
+			current.close();
+			current = null;
+		}
+		cycle.close();
+		cycle.releaseBuffer();
+		pool.release(writeBuff);
+		writeBuff = null;
+
+		try {
+			ch.close();
+		}
+		catch(IOException e) {
+			// already closed
+		}
+
+		engine.release();
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * File: BodyDecoder.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Incremental decoder for request bodies sent with Content-Length or with
+ *       Transfer-Encoding: chunked. Bytes are decoded as they are read and the body data is
+ *       handed to a Sink as slices of the read buffer, so nothing is copied here. Chunk
+ *       framing and trailer fields are consumed and dropped.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+public class BodyDecoder {
+
+	/**
+	 * Receives the body data as it is decoded
+	 */
+	public interface Sink {
+		/**
+		 * Take the bytes from the position to the limit of data. The buffer is reused once
+		 * this returns, so anything kept has to be copied.
+		 * @param data Decoded body bytes
+		 */
+		void write(ByteBuffer data) throws IOException;
+
+		/**
+		 * No more data will come. Called once the response has been sent, or as soon as the
+		 * body fails (client gone, too large, bad framing), in which case no handler sees it.
+		 */
+		void close();
+	}
+
+	// chunked states
+	private static final int S_SIZE = 0; // hex digits of the chunk size
+	private static final int S_EXT = 1; // chunk extensions, ignored
+	private static final int S_SIZE_LF = 2;
+	private static final int S_DATA = 3;
+	private static final int S_DATA_CR = 4; // CRLF after the chunk data
+	private static final int S_DATA_LF = 5;
+	private static final int S_TRAILER_START = 6; // start of a trailer field (or the blank line)
+	private static final int S_TRAILER = 7;
+	private static final int S_END_LF = 8;
+	private static final int S_DONE = 9;
+	private static final int S_ERROR = 10;
+	private static final int S_TOO_LARGE = 11;
+
+	private final boolean chunked;
+	private final long max; // largest decoded body accepted
+	private int state;
+	private long left; // data bytes left in the body or in the current chunk
+	private long size; // chunk size being parsed
+	private int digits;
+	private long total; // decoded bytes so far
+
+	private BodyDecoder(boolean chunked, long length, long max) {
+		this.chunked = chunked;
+		this.max = max;
+		if(chunked) {
+			state = S_SIZE;
+		}
+		else {
+			left = length;
+			state = length > max ? S_TOO_LARGE : (length == 0 ? S_DONE : S_DATA);
+		}
+	}
+
+	/**
+	 * Decoder for a body with a Content-Length
+	 * @param length Length of the body
+	 * @param max Largest body accepted
+	 * @return The decoder, already too large if length is over max
+	 */
+	public static BodyDecoder fixed(long length, long max) {
+		return new BodyDecoder(false, length, max);
+	}
+
+	/**
+	 * Decoder for a chunked body
+	 * @param max Largest decoded body accepted
+	 * @return The decoder
+	 */
+	public static BodyDecoder chunked(long max) {
+		return new BodyDecoder(true, 0, max);
+	}
+
+	/**
+	 * Decoder for the body of a parsed request, framed by its Transfer-Encoding or
+	 * Content-Length fields
+	 * @param p Parser that has read the request header
+	 * @param max Largest decoded body accepted
+	 * @return The decoder, null if the request has no body. It has already failed if the
+	 *         framing fields are malformed, or is too large if the length is over max.
+	 */
+	public static BodyDecoder forRequest(HTTPRequestParser p, long max) {
+		if(p.headerEquals(HTTPRequestParser.TRANSFER_ENCODING, "chunked"))
+			return chunked(max);
+
+		BodyDecoder d;
+		if(p.getHeader(HTTPRequestParser.TRANSFER_ENCODING) != null) {
+			// chunked has to be the last coding, there is no other way to find the end
+			d = chunked(max);
+			d.state = S_ERROR;
+			return d;
+		}
+
+		String cl = p.getHeader(HTTPRequestParser.CONTENT_LENGTH);
+		if(cl == null)
+			return null;
+		// lengths that could be read differently by a proxy in front of us are refused
+		long length = p.hasLengthConflict() ? -1 : parseLength(cl);
+		if(length == 0)
+			return null;
+		if(length < 0) {
+			d = fixed(0, max);
+			d.state = S_ERROR;
+			return d;
+		}
+		return fixed(length, max);
+	}
+
+	/**
+	 * Parse a Content-Length value. Only plain digits are taken, no sign or whitespace.
+	 * @param cl Field value
+	 * @return The length, -1 if it is not a valid length
+	 */
+	private static long parseLength(String cl) {
+		// 18 digits always fit in a long
+		if(cl.isEmpty() || cl.length() > 18)
+			return -1;
+		long length = 0;
+		for(int i = 0; i < cl.length(); i++) {
+			char c = cl.charAt(i);
+			if(c < '0' || c > '9')
+				return -1;
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+
+	/**
+	 * Decode the bytes from the position to the limit of in. The position is moved past
+	 * every byte that belongs to the body; anything left after it is the next request.
+	 * @param in Raw bytes read from the client
+	 * @param sink Gets the decoded data
+	 * @return True once the whole body has been decoded, or it failed
+	 */
+	public boolean decode(ByteBuffer in, Sink sink) throws IOException {
+		while(in.hasRemaining() && state < S_DONE) {
+			if(state == S_DATA) {
+				int n = (int)Math.min(left, in.remaining());
+				ByteBuffer data = in.duplicate();
+				data.limit(in.position() + n);
+				sink.write(data);
+				in.position(in.position() + n);
+				left -= n;
+				total += n;
+				if(left == 0)
+					state = chunked ? S_DATA_CR : S_DONE;
+				continue;
+			}
+
+			int c = in.get() & 0xff;
+			switch(state) {
+				case S_SIZE:
+					int d = Character.digit(c, 16);
+					if(d >= 0) {
+						// more than 15 hex digits can only be an attack or garbage
+						if(++digits > 15) {
+							state = S_ERROR;
+							break;
+						}
+						size = (size << 4) | d;
+					}
+					else if(digits == 0) {
+						state = S_ERROR;
+					}
+					else if(c == ';' || c == ' ' || c == '\t') {
+						state = S_EXT;
+					}
+					else if(c == '\r') {
+						state = S_SIZE_LF;
+					}
+					else if(c == '\n') {
+						startChunk();
+					}
+					else {
+						state = S_ERROR;
+					}
+					break;
+
+				case S_EXT:
+					if(c == '\r')
+						state = S_SIZE_LF;
+					else if(c == '\n')
+						startChunk();
+					break;
+
+				case S_SIZE_LF:
+					if(c == '\n')
+						startChunk();
+					else
+						state = S_ERROR;
+					break;
+
+				case S_DATA_CR:
+					if(c == '\r')
+						state = S_DATA_LF;
+					else if(c == '\n')
+						nextChunk();
+					else
+						state = S_ERROR;
+					break;
+
+				case S_DATA_LF:
+					if(c == '\n')
+						nextChunk();
+					else
+						state = S_ERROR;
+					break;
+
+				case S_TRAILER_START:
+					if(c == '\r')
+						state = S_END_LF;
+					else if(c == '\n')
+						state = S_DONE;
+					else
+						state = S_TRAILER;
+					break;
+
+				case S_TRAILER:
+					if(c == '\n')
+						state = S_TRAILER_START;
+					break;
+
+				case S_END_LF:
+					state = (c == '\n') ? S_DONE : S_ERROR;
+					break;
+			}
+		}
+
+		return state >= S_DONE;
+	}
+
+	/**
+	 * The size line of a chunk has ended, start on its data
+	 */
+	private void startChunk() {
+		if(size == 0) {
+			state = S_TRAILER_START;
+		}
+		else if(total + size > max) {
+			state = S_TOO_LARGE;
+		}
+		else {
+			left = size;
+			state = S_DATA;
+		}
+	}
+
+	/**
+	 * Get ready for the size line of the next chunk
+	 */
+	private void nextChunk() {
+		size = 0;
+		digits = 0;
+		state = S_SIZE;
+	}
+
+	/**
+	 * @return True once the whole body has been decoded
+	 */
+	public boolean isDone() {
+		return state == S_DONE;
+	}
+
+	/**
+	 * @return True if the chunk framing was invalid
+	 */
+	public boolean isError() {
+		return state == S_ERROR;
+	}
+
+	/**
+	 * @return True if the body is larger than the limit
+	 */
+	public boolean isTooLarge() {
+		return state == S_TOO_LARGE;
+	}
+
+	/**
+	 * @return Decoded bytes so far
+	 */
+	public long getLength() {
+		return total;
+	}
+}
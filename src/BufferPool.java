@@ -0,0 +1,195 @@
+/*
+ * File: BufferPool.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Pool of direct ByteBuffers in power of two size classes. Each thread keeps a small
+ *       cache per size class so most acquire/release pairs never touch shared state; the
+ *       shared queues only see overflow from the thread caches.
+ */
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 12; // smallest size class is 4 KB
+
+	private final int classes; // number of size classes
+	private final int maxPooled; // buffers kept in each shared queue
+	private final int cacheSize; // buffers kept in each thread cache per class
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+	private final AtomicInteger[] sharedCount;
+	private final ThreadLocal<ArrayDeque<ByteBuffer>[]> local;
+
+	// statistics
+	private final LongAdder hits = new LongAdder(); // served from a cache or queue
+	private final LongAdder misses = new LongAdder(); // newly allocated
+	private final LongAdder outstanding = new LongAdder(); // acquired and not yet released
+
+	/**
+	 * Create a pool
+	 * @param maxSize Largest buffer size that is pooled, rounded up to a power of two
+	 * @param maxPooled Buffers kept per size class in the shared queue
+	 * @param cacheSize Buffers kept per size class by each thread
+	 */
+	public BufferPool(int maxSize, int maxPooled, int cacheSize) {
+		classes = sizeClass(Math.max(maxSize, 1 << MIN_SHIFT)) + 1;
+		this.maxPooled = maxPooled;
+		this.cacheSize = cacheSize;
+
+		shared = newArray(ConcurrentLinkedQueue.class, classes);
+		sharedCount = new AtomicInteger[classes];
+		for(int i = 0; i < classes; i++) {
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCount[i] = new AtomicInteger();
+		}
+
+		local = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+			protected ArrayDeque<ByteBuffer>[] initialValue() {
+				ArrayDeque<ByteBuffer>[] c = newArray(ArrayDeque.class, classes);
+				for(int i = 0; i < c.length; i++)
+					c[i] = new ArrayDeque<ByteBuffer>();
+				return c;
+			}
+		};
+	}
+
+	/**
+	 * Create an array of a generic type, which Java cannot do directly
+	 * @param type Class of the elements without their type parameter
+	 * @param n Length of the array
+	 * @return Array of n nulls
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T[] newArray(Class<?> type, int n) {
+		return (T[])Array.newInstance(type, n);
+	}
+
+	/**
+	 * Create a pool sized from the server configuration
+	 * @param sc Server configuration
+	 * @return The pool
+	 */
+	public static BufferPool fromConfig(ServerConfig sc) {
+		return fromConfig(sc, sc.getIntSetting("server.pool.cache"));
+	}
+
+	/**
+	 * Create a pool sized from the server configuration with a given thread cache. Threads
+	 * that only live as long as one connection should not cache, the buffers they hold
+	 * would be lost when the thread ends.
+	 * @param sc Server configuration
+	 * @param cacheSize Buffers kept per size class by each thread, 0 for none
+	 * @return The pool
+	 */
+	public static BufferPool fromConfig(ServerConfig sc, int cacheSize) {
+		int maxSize = Math.max(sc.getIntSetting("server.header.max"), sc.getIntSetting("server.transfer.chunk"));
+		return new BufferPool(maxSize, sc.getIntSetting("server.pool.buffers"), cacheSize);
+	}
+
+	/**
+	 * Get the size class of a buffer size
+	 * @param size Size in bytes
+	 * @return Size class, 0 is the smallest
+	 */
+	private static int sizeClass(int size) {
+		if(size <= (1 << MIN_SHIFT))
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * Borrow a cleared direct buffer of at least the given size
+	 * @param size Minimum capacity
+	 * @return Buffer, must be handed back with release()
+	 */
+	public ByteBuffer acquire(int size) {
+		outstanding.increment();
+
+		int c = sizeClass(size);
+		if(c >= classes) {
+			// too large to pool
+			misses.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer b = cacheSize > 0 ? local.get()[c].pollFirst() : null;
+		if(b == null) {
+			b = shared[c].poll();
+			if(b != null)
+				sharedCount[c].decrementAndGet();
+		}
+
+		if(b == null) {
+			misses.increment();
+			return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+		}
+
+		hits.increment();
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Hand a buffer back to the pool. It must not be used after this.
+	 * @param b Buffer from acquire(), null is ignored
+	 */
+	public void release(ByteBuffer b) {
+		if(b == null)
+			return;
+		outstanding.decrement();
+
+		int cap = b.capacity();
+		int c = sizeClass(cap);
+		// only buffers that came from this pool's size classes are kept
+		if(!b.isDirect() || c >= classes || cap != (1 << (c + MIN_SHIFT)))
+			return;
+
+		if(cacheSize > 0) {
+			ArrayDeque<ByteBuffer> cache = local.get()[c];
+			if(cache.size() < cacheSize) {
+				cache.addFirst(b);
+				return;
+			}
+		}
+
+		if(sharedCount[c].incrementAndGet() <= maxPooled)
+			shared[c].offer(b);
+		else
+			sharedCount[c].decrementAndGet(); // pool is full, let GC have it
+	}
+
+	/**
+	 * @return Number of acquires served from a cache or the shared queues
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of acquires that had to allocate a new buffer
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of buffers acquired and not yet released
+	 */
+	public long getOutstanding() {
+		return outstanding.sum();
+	}
+
+	/**
+	 * @return Pool statistics in a single line
+	 */
+	public String toString() {
+		return "hits: " + getHits() + ", misses: " + getMisses() + ", outstanding: " + getOutstanding();
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * File: ByteRanges.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Parse a Range request header ("bytes=0-99,200-,-500") against the size of the
+ *       requested file. Ranges are resolved to absolute, inclusive first and last offsets.
+ */
+
+
+public class ByteRanges {
+
+	// more ranges than this in one request are ignored and the whole file is sent
+	private static final int MAX_RANGES = 32;
+
+	private long[] first;
+	private long[] last;
+	private int count;
+
+	private ByteRanges(int max) {
+		first = new long[max];
+		last = new long[max];
+		count = 0;
+	}
+
+	/**
+	 * Parse a Range header
+	 * @param header Value of the Range field, may be null
+	 * @param length Size of the file
+	 * @return The satisfiable ranges (possibly none), null if the header should be ignored
+	 */
+	public static ByteRanges parse(String header, long length) {
+		if(header == null)
+			return null;
+
+		header = header.trim();
+		if(!header.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		String[] specs = header.substring(6).split(",");
+		if(specs.length > MAX_RANGES)
+			return null;
+
+		ByteRanges r = new ByteRanges(specs.length);
+		for(String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if(dash < 0)
+				return null;
+
+			long a, b;
+			try {
+				if(dash == 0) {
+					// suffix range, the last n bytes
+					long n = Long.parseLong(spec.substring(1));
+					if(n <= 0)
+						continue;
+					a = Math.max(0, length - n);
+					b = length - 1;
+				}
+				else {
+					a = Long.parseLong(spec.substring(0, dash));
+					if(dash == spec.length() - 1) {
+						b = length - 1;
+					}
+					else {
+						b = Long.parseLong(spec.substring(dash + 1));
+						if(b < a)
+							return null;
+						b = Math.min(b, length - 1);
+					}
+				}
+			}
+			catch(NumberFormatException e) {
+				return null;
+			}
+
+			// ranges starting past the end cannot be satisfied
+			if(a < 0 || a >= length)
+				continue;
+
+			r.first[r.count] = a;
+			r.last[r.count] = b;
+			r.count++;
+		}
+		return r;
+	}
+
+	/**
+	 * @return Number of satisfiable ranges, 0 means a 416 should be sent
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param i Range number
+	 * @return Offset of the first byte of the range
+	 */
+	public long getFirst(int i) {
+		return first[i];
+	}
+
+	/**
+	 * @param i Range number
+	 * @return Offset of the last byte of the range (inclusive)
+	 */
+	public long getLast(int i) {
+		return last[i];
+	}
+
+	/**
+	 * @param i Range number
+	 * @return Number of bytes in the range
+	 */
+	public long getLength(int i) {
+		return last[i] - first[i] + 1;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * File: ChunkedOutput.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Body of a response whose length is not known up front. A Source writes the body a
+ *       piece at a time to this stream, and the session pulls it out as chunks of
+ *       Transfer-Encoding: chunked. Small writes are collected in the session's scratch
+ *       buffer and sent as one chunk once it is full, the source calls flush(), or the body
+ *       ends; the chunk framing is written around the data in place so it is never copied
+ *       again. Clients that cannot take chunks get the bare body and the connection closed.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+public class ChunkedOutput extends OutputStream {
+
+	/**
+	 * Produces a response body
+	 */
+	public interface Source {
+		/**
+		 * Write the next part of the body. Called on the blocking pool, again and again until
+		 * it returns false, each time the session has room for more. Writing any amount is
+		 * fine; flush() sends what has been written so far without waiting to fill a chunk.
+		 * @param out Stream to write to
+		 * @return True if there is more to write, false once the body is complete
+		 */
+		boolean write(OutputStream out) throws IOException;
+	}
+
+	private static final int HEAD = 10; // room for the chunk size line, 8 hex digits and CRLF
+	private static final int TAIL = 7; // CRLF after the data and the last chunk "0\r\n\r\n"
+	private static final byte[] HEX = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
+	private static final byte[] LAST = {'0', '\r', '\n', '\r', '\n'};
+
+	private final Source source;
+	private final boolean chunked;
+	private ByteBuffer buf; // scratch buffer being filled, null outside of next()
+	private byte[] overflow = new byte[0]; // written past the end of the scratch buffer
+	private int overflowLen;
+	private boolean flushed;
+	private boolean done;
+
+	/**
+	 * Create a body
+	 * @param s Source of the body
+	 * @param chunked True to frame the body as chunks, false to send it as it is (the
+	 *        connection has to be closed to mark the end)
+	 */
+	public ChunkedOutput(Source s, boolean chunked) {
+		source = s;
+		this.chunked = chunked;
+	}
+
+	/**
+	 * Fill the scratch buffer with the next chunk
+	 * @param scratch Empty buffer to fill, must hold more than the chunk framing
+	 * @return The scratch buffer ready to write
+	 */
+	ByteBuffer next(ByteBuffer scratch) throws IOException {
+		int start = scratch.position();
+		int dataStart = chunked ? start + HEAD : start;
+		scratch.position(dataStart);
+		scratch.limit(scratch.capacity() - (chunked ? TAIL : 0));
+		buf = scratch;
+		flushed = false;
+
+		// what did not fit last time goes first
+		if(overflowLen > 0) {
+			int n = Math.min(overflowLen, scratch.remaining());
+			scratch.put(overflow, 0, n);
+			System.arraycopy(overflow, n, overflow, 0, overflowLen - n);
+			overflowLen -= n;
+		}
+
+		boolean more = true;
+		while(overflowLen == 0 && !flushed && scratch.hasRemaining()) {
+			more = source.write(this);
+			if(!more)
+				break;
+		}
+		buf = null;
+		done = !more && overflowLen == 0;
+
+		int length = scratch.position() - dataStart;
+		scratch.limit(scratch.capacity());
+		int head = dataStart;
+		if(chunked) {
+			if(length > 0) {
+				scratch.put((byte)'\r').put((byte)'\n');
+				// size line right before the data
+				scratch.put(--head, (byte)'\n');
+				scratch.put(--head, (byte)'\r');
+				do {
+					scratch.put(--head, HEX[length & 0xf]);
+					length >>>= 4;
+				} while(length > 0);
+			}
+			if(done)
+				scratch.put(LAST);
+		}
+		scratch.limit(scratch.position());
+		scratch.position(head);
+		return scratch;
+	}
+
+	/**
+	 * @return True once the whole body has been handed out
+	 */
+	boolean isDone() {
+		return done;
+	}
+
+	public void write(int b) {
+		if(buf != null && buf.hasRemaining()) {
+			buf.put((byte)b);
+			return;
+		}
+		byte[] one = {(byte)b};
+		keep(one, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		if(buf != null) {
+			int n = Math.min(len, buf.remaining());
+			buf.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+		if(len > 0)
+			keep(b, off, len);
+	}
+
+	/**
+	 * Hold bytes that did not fit in the scratch buffer for the next chunk
+	 */
+	private void keep(byte[] b, int off, int len) {
+		if(overflowLen + len > overflow.length) {
+			byte[] bigger = new byte[Math.max(overflow.length * 2, overflowLen + len)];
+			System.arraycopy(overflow, 0, bigger, 0, overflowLen);
+			overflow = bigger;
+		}
+		System.arraycopy(b, off, overflow, overflowLen, len);
+		overflowLen += len;
+	}
+
+	/**
+	 * Send what has been written so far as a chunk, without waiting for the buffer to fill
+	 */
+	public void flush() {
+		flushed = true;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * File: Compressor.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: gzip content coding for responses. Bodies are compressed once with java.util.zip
+ *       and then kept in the content cache next to the uncompressed file.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+public class Compressor {
+
+	// gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+
+	/**
+	 * Determine if a client accepts gzip from its Accept-Encoding header
+	 * @param acceptEncoding Value of the Accept-Encoding field, may be null
+	 * @return True if gzip is listed and not refused with q=0
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if(acceptEncoding == null)
+			return false;
+
+		for(String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			if(!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip"))
+				continue;
+
+			for(int i = 1; i < params.length; i++) {
+				String p = params[i].trim();
+				if(p.startsWith("q=") || p.startsWith("Q=")) {
+					try {
+						return Double.parseDouble(p.substring(2)) > 0;
+					}
+					catch(NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Compress a buffer into a gzip member
+	 * @param in Data between position and limit, the buffer itself is not changed
+	 * @param level Deflate level 1 (fast) to 9 (small)
+	 * @return Direct buffer with the gzip data, ready to be written
+	 */
+	public static ByteBuffer gzip(ByteBuffer in, int level) {
+		ByteBuffer src = in.duplicate();
+		byte[] data = new byte[src.remaining()];
+		src.get(data);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+
+		Deflater def = new Deflater(level, true);
+		def.setInput(data);
+		def.finish();
+
+		// incompressible data grows a little, leave room for that and the header/trailer
+		byte[] out = new byte[data.length + data.length/1000 + 64];
+		System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+		int len = GZIP_HEADER.length;
+		while(!def.finished()) {
+			if(len == out.length) {
+				byte[] bigger = new byte[out.length * 2];
+				System.arraycopy(out, 0, bigger, 0, len);
+				out = bigger;
+			}
+			len += def.deflate(out, len, out.length - len);
+		}
+		def.end();
+
+		ByteBuffer gz = ByteBuffer.allocateDirect(len + 8);
+		gz.put(out, 0, len);
+		// trailer is little endian CRC32 and length
+		gz.put((byte)crc.getValue()).put((byte)(crc.getValue() >> 8)).put((byte)(crc.getValue() >> 16)).put((byte)(crc.getValue() >> 24));
+		gz.put((byte)data.length).put((byte)(data.length >> 8)).put((byte)(data.length >> 16)).put((byte)(data.length >> 24));
+		gz.flip();
+		return gz;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * File: ConnectionWatch.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Slow client protection for one connection. A connection moves through phases (waiting
+ *       for a request, reading it, writing the response) and each phase can have a deadline
+ *       and a minimum transfer rate. All connections are checked by one shared timing wheel,
+ *       which closes the channel of a connection that misses its deadline or falls below the
+ *       rate; the read or write waiting on it then fails and the connection is cleaned up.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+public class ConnectionWatch implements TimingWheel.Timeout {
+
+	private static TimingWheel wheel;
+	private static long minRate = 512; // bytes/s a read or write must keep up, 0 for no check
+	private static long rateWindow = 5000; // ms over which the rate is measured
+
+	private final Closeable channel;
+	private volatile long deadline; // TimingWheel time the current phase must end by, 0 for none
+	private volatile boolean rateChecked; // true while reading a request or writing a response
+	private volatile long progress; // bytes moved in the current phase
+	private volatile long rateMark; // progress at the start of the current rate window
+	private volatile long rateMarkTime;
+	private volatile long scheduled; // time this connection is next checked by the wheel, 0 if not
+	private volatile boolean timedOut;
+	private volatile boolean stopped;
+
+	/**
+	 * Read the rate settings and start the shared wheel
+	 * @param sc Server configuration
+	 */
+	public static void init(ServerConfig sc) {
+		minRate = sc.getIntSetting("server.rate.min");
+		rateWindow = Math.max(1, sc.getIntSetting("server.rate.window"));
+
+		if(wheel == null)
+			wheel = new TimingWheel(100, 512, "asock-timer");
+	}
+
+	/**
+	 * Watch a connection
+	 * @param c Channel closed when the connection times out
+	 */
+	public ConnectionWatch(Closeable c) {
+		channel = c;
+	}
+
+	/**
+	 * Start watching a new phase of the connection
+	 * @param until Time from TimingWheel.now() the phase must end by, 0 for no limit
+	 * @param rate True if the phase must keep up the minimum rate
+	 */
+	public void watch(long until, boolean rate) {
+		long now = TimingWheel.now();
+		progress = 0;
+		rateMark = 0;
+		rateMarkTime = now;
+		rateChecked = rate && minRate > 0;
+		deadline = until;
+
+		long at = until;
+		if(rateChecked && (at == 0 || now + rateWindow < at))
+			at = now + rateWindow;
+
+		// a later check already queued picks up the new deadline when it runs,
+		// only an earlier one needs another entry
+		long s = scheduled;
+		if(at > 0 && (s == 0 || at < s)) {
+			scheduled = at;
+			wheel.schedule(this, at);
+		}
+	}
+
+	/**
+	 * Stop watching, nothing is waited on until the next phase
+	 */
+	public void unwatch() {
+		deadline = 0;
+		rateChecked = false;
+	}
+
+	/**
+	 * Stop watching for good, the connection is closed
+	 */
+	public void stop() {
+		stopped = true;
+		unwatch();
+	}
+
+	/**
+	 * Count bytes moved in the current phase
+	 * @param n Bytes read or written
+	 */
+	public void progress(long n) {
+		progress += n;
+	}
+
+	/**
+	 * @return Deadline of the current phase, 0 for none
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @return True if the connection was closed for being too slow
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Called by the timing wheel. Closes the connection if the current phase has run past its
+	 * deadline, or moved fewer than the minimum bytes over the last rate window.
+	 * @param now Current time
+	 * @return Time of the next check, 0 if none
+	 */
+	public long check(long now) {
+		scheduled = 0;
+		if(stopped)
+			return 0;
+
+		long d = deadline;
+		if(d != 0 && now >= d) {
+			expire();
+			return 0;
+		}
+
+		long next = d;
+		if(rateChecked) {
+			long elapsed = now - rateMarkTime;
+			if(elapsed >= rateWindow) {
+				long moved = progress - rateMark;
+				if(moved * 1000 < minRate * elapsed) {
+					expire();
+					return 0;
+				}
+				rateMark = progress;
+				rateMarkTime = now;
+				elapsed = 0;
+			}
+			long r = now + rateWindow - elapsed;
+			if(next == 0 || r < next)
+				next = r;
+		}
+
+		if(next != 0)
+			scheduled = next;
+		return next;
+	}
+
+	/**
+	 * Close a connection that timed out. The pending read or write fails, and whoever was
+	 * waiting on it releases the buffers.
+	 */
+	private void expire() {
+		timedOut = true;
+		ServerMetrics.timedOut();
+		try {
+			channel.close();
+		}
+		catch(IOException e) {
+			// already closed
+		}
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * File: ContentCache.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Size bounded cache of small static files. Each entry keeps the file body and the
+ *       ready to send header fields in direct buffers, so a hit is answered without touching
+ *       the disk or copying. Lookups are lock-free; once the cache grows past its limit the
+ *       least recently used entries are evicted down to a low water mark. Entries are checked
+ *       against the file's modification time and size at most once per revalidate interval.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class ContentCache {
+
+	private final ConcurrentHashMap<String,Entry> entries;
+	private final long maxSize; // total bytes of bodies and headers kept
+	private final long lowWater; // eviction stops below this
+	private final int maxFileSize; // larger files are not cached
+	private final long revalidate; // ms between checks of the file on disk
+	private final AtomicLong size = new AtomicLong();
+	private final Object evictLock = new Object();
+
+	// statistics
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * A cached file
+	 */
+	public static class Entry {
+		private final File file;
+		private final ByteBuffer header; // header fields INCLUDING the empty line
+		private final ByteBuffer body;
+		private final String etag;
+		private final long modified;
+		private final long fileLength; // size on disk, differs from the body if it was compressed
+		private final long length;
+		private final Entry base; // entry of the file this encoding was made for, null if none
+		private volatile long lastAccess;
+		private volatile long lastChecked;
+
+		Entry(File f, long fLen, ByteBuffer h, ByteBuffer b, String tag, long mod, Entry src, long now) {
+			file = f;
+			base = src;
+			fileLength = fLen;
+			header = h;
+			body = b;
+			etag = tag;
+			modified = mod;
+			length = b.remaining();
+			lastAccess = now;
+			lastChecked = now;
+		}
+
+		/**
+		 * @return Copy of the header fields buffer, safe to write from any thread
+		 */
+		public ByteBuffer getHeader() {
+			return header.duplicate();
+		}
+
+		/**
+		 * @return Copy of the body buffer, safe to write from any thread
+		 */
+		public ByteBuffer getBody() {
+			return body.duplicate();
+		}
+
+		/**
+		 * @return The file the body was made from
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return Size of the file on disk
+		 */
+		public long getFileLength() {
+			return fileLength;
+		}
+
+		/**
+		 * @return Entity tag sent with the file
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * @return Modification time of the file when it was cached
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * @return Entry of the file this is an encoding of, null if this is the file itself.
+		 *         The encoding is out of date once that is no longer the file's entry.
+		 */
+		public Entry getBase() {
+			return base;
+		}
+
+		/**
+		 * @return Size of the body that is sent
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		long cost() {
+			return header.capacity() + body.capacity();
+		}
+	}
+
+	/**
+	 * Create a cache
+	 * @param maxSize Bytes of content kept before evicting
+	 * @param maxFileSize Largest file that is cached
+	 * @param revalidate Milliseconds between checks of a cached file's modification time
+	 */
+	public ContentCache(long maxSize, int maxFileSize, long revalidate) {
+		this.maxSize = maxSize;
+		this.lowWater = maxSize - maxSize/10;
+		this.maxFileSize = maxFileSize;
+		this.revalidate = revalidate;
+		entries = new ConcurrentHashMap<String,Entry>();
+	}
+
+	/**
+	 * Create a cache from the server configuration
+	 * @param sc Server configuration
+	 * @return The cache, null if it is disabled (server.cache.size = 0)
+	 */
+	public static ContentCache fromConfig(ServerConfig sc) {
+		int max = sc.getIntSetting("server.cache.size");
+		if(max <= 0)
+			return null;
+		return new ContentCache(max, sc.getIntSetting("server.cache.file.max"), sc.getIntSetting("server.cache.revalidate"));
+	}
+
+	/**
+	 * Look up a file, checking it is unchanged on disk if it has not been checked recently
+	 * @param key Resolved path of the file
+	 * @return The entry, null if not cached or out of date
+	 */
+	public Entry get(String key) {
+		Entry e = entries.get(key);
+		if(e == null) {
+			misses.increment();
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		if(now - e.lastChecked >= revalidate) {
+			if(e.file.lastModified() != e.modified || e.file.length() != e.fileLength || !e.file.isFile()) {
+				if(entries.remove(key, e)) {
+					size.addAndGet(-e.cost());
+					invalidations.increment();
+				}
+				misses.increment();
+				return null;
+			}
+			e.lastChecked = now;
+		}
+
+		e.lastAccess = System.nanoTime();
+		hits.increment();
+		return e;
+	}
+
+	/**
+	 * Determine if a file is small enough to be cached
+	 * @param length Size of the file
+	 * @return True if it should be cached
+	 */
+	public boolean accepts(long length) {
+		return length <= maxFileSize && length <= maxSize;
+	}
+
+	/**
+	 * Read a whole file into a direct buffer
+	 * @param fc Open channel to the file, it is not closed
+	 * @return Buffer ready to be written, null if the file was truncated while reading
+	 * @throws IOException If the file cannot be read
+	 */
+	public static ByteBuffer readBody(FileChannel fc) throws IOException {
+		ByteBuffer body = ByteBuffer.allocateDirect((int)fc.size());
+		long pos = 0;
+		while(body.hasRemaining()) {
+			int read = fc.read(body, pos);
+			if(read < 0)
+				return null;
+			pos += read;
+		}
+		body.flip();
+		return body;
+	}
+
+	/**
+	 * Add a file to the cache
+	 * @param key Resolved path of the file, plus a suffix for other encodings of it
+	 * @param file The file the body was made from, checked for changes on later lookups
+	 * @param fileLength Size of that file
+	 * @param modified Modification time of that file
+	 * @param etag Entity tag of the body
+	 * @param header Header fields to keep with the body, INCLUDING the empty line
+	 * @param body File contents from readBody(), or an encoding of them
+	 * @param base Entry of the file if this is an encoding of it, null otherwise
+	 * @return The new entry
+	 */
+	public Entry put(String key, File file, long fileLength, long modified, String etag, byte[] header, ByteBuffer body, Entry base) {
+		ByteBuffer h = ByteBuffer.allocateDirect(header.length);
+		h.put(header);
+		h.flip();
+
+		Entry e = new Entry(file, fileLength, h, body, etag, modified, base, System.currentTimeMillis());
+		e.lastAccess = System.nanoTime();
+
+		Entry old = entries.put(key, e);
+		size.addAndGet(e.cost() - (old == null ? 0 : old.cost()));
+		if(size.get() > maxSize)
+			evict();
+
+		return e;
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache is below the low water mark
+	 */
+	private void evict() {
+		synchronized(evictLock) {
+			if(size.get() <= maxSize)
+				return;
+
+			List<Map.Entry<String,Entry>> all = new ArrayList<Map.Entry<String,Entry>>(entries.entrySet());
+			Collections.sort(all, new Comparator<Map.Entry<String,Entry>>() {
+				public int compare(Map.Entry<String,Entry> a, Map.Entry<String,Entry> b) {
+					return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			});
+
+			for(int i = 0; i < all.size() && size.get() > lowWater; i++) {
+				Entry e = all.get(i).getValue();
+				if(entries.remove(all.get(i).getKey(), e)) {
+					size.addAndGet(-e.cost());
+					evictions.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Number of lookups answered from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of lookups not found or out of date
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of entries removed to stay under the size limit
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return Number of entries removed because the file changed
+	 */
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * @return Bytes currently cached
+	 */
+	public long getSize() {
+		return size.get();
+	}
+
+	/**
+	 * @return Number of cached files
+	 */
+	public int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Cache statistics in a single line
+	 */
+	public String toString() {
+		return "files: " + getCount() + ", bytes: " + getSize() + ", hits: " + getHits() + ", misses: " + getMisses()
+				+ ", evictions: " + getEvictions() + ", invalidations: " + getInvalidations();
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * File: DirectoryListing.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Directory handling for the server. A directory is scanned once for its index file
+ *       and its entries, and the rendered HTML and JSON listings are kept until something in
+ *       the directory changes. Changes are picked up by a WatchService: each cached directory
+ *       is registered with it and one thread drops a directory's listing as soon as an entry
+ *       is created, deleted or modified, so a large directory is not scanned or rendered again
+ *       on every request. Without a WatchService (or with the cache off) directories are
+ *       scanned per request and the listing is streamed as it is rendered.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class DirectoryListing implements Runnable {
+
+	private static final int ROWS_PER_WRITE = 256; // listing rows rendered per call when streaming
+
+	private final Path root;
+	private final String indexName;
+	private final int maxDirs; // directories cached, 0 for none
+	private final ConcurrentHashMap<Path,Listing> listings = new ConcurrentHashMap<Path,Listing>();
+	private WatchService watcher; // null if directories are not cached
+	private final AtomicLong changes = new AtomicLong(); // bumped for every directory that changes
+
+	// statistics
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * One entry of a directory
+	 */
+	private static final class Item {
+		final String name;
+		final boolean dir;
+		final long size;
+		final long modified;
+
+		Item(String n, boolean d, long s, long m) {
+			name = n;
+			dir = d;
+			size = s;
+			modified = m;
+		}
+	}
+
+	/**
+	 * A scanned directory: its index file or its entries, with the listings rendered so far
+	 */
+	public static final class Listing {
+		private final File index;
+		private final String location; // location of the directory under the root, ends with /
+		private final List<Item> items;
+		private final WatchKey key; // null if not cached
+		private volatile byte[] html;
+		private volatile byte[] json;
+
+		Listing(File idx, String loc, List<Item> it, WatchKey k) {
+			index = idx;
+			location = loc;
+			items = it;
+			key = k;
+		}
+
+		/**
+		 * @return Index file of the directory, null if it has none
+		 */
+		public File getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return True if the listing is kept between requests
+		 */
+		public boolean isCached() {
+			return key != null;
+		}
+
+		/**
+		 * Get the rendered listing, rendering it the first time
+		 * @param asJson True for JSON, false for HTML
+		 * @return The listing
+		 */
+		public byte[] getBody(boolean asJson) {
+			byte[] b = asJson ? json : html;
+			if(b != null)
+				return b;
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256 + 96 * items.size());
+			ChunkedOutput.Source src = render(asJson);
+			try {
+				while(src.write(out)) {
+					// render all of it
+				}
+			}
+			catch(IOException e) {
+				// only from the stream, which is in memory
+			}
+			b = out.toByteArray();
+			if(asJson)
+				json = b;
+			else
+				html = b;
+			return b;
+		}
+
+		/**
+		 * Render the listing a few rows at a time
+		 * @param asJson True for JSON, false for HTML
+		 * @return Source writing the listing
+		 */
+		public ChunkedOutput.Source render(final boolean asJson) {
+			return new ChunkedOutput.Source() {
+				private int next = -1; // -1 before the opening has been written
+				private final StringBuilder b = new StringBuilder(8192);
+
+				public boolean write(OutputStream out) throws IOException {
+					b.setLength(0);
+					if(next < 0) {
+						if(asJson)
+							b.append('[');
+						else
+							htmlStart(b);
+						next = 0;
+					}
+					int end = Math.min(items.size(), next + ROWS_PER_WRITE);
+					for(; next < end; next++) {
+						if(asJson)
+							jsonRow(b, items.get(next), next > 0);
+						else
+							htmlRow(b, items.get(next));
+					}
+					boolean more = next < items.size();
+					if(!more)
+						b.append(asJson ? "]\n" : "</table>\n</body>\n</html>\n");
+					out.write(b.toString().getBytes(StandardCharsets.UTF_8));
+					return more;
+				}
+			};
+		}
+
+		private void htmlStart(StringBuilder b) {
+			b.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>Index of ");
+			escapeHtml(b, location);
+			b.append("</title>\n</head>\n<body style='font-family: arial; font-size: 14px; padding: 25px; color: rgb(50,50,100);'>\n<h1>Index of ");
+			escapeHtml(b, location);
+			b.append("</h1>\n<table>\n<tr><th align='left'>Name</th><th align='right'>Size</th><th align='left'>Modified</th></tr>\n");
+			if(!location.equals("/"))
+				b.append("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+		}
+
+		private static void htmlRow(StringBuilder b, Item it) {
+			b.append("<tr><td><a href=\"");
+			escapeUrl(b, it.name);
+			if(it.dir)
+				b.append('/');
+			b.append("\">");
+			escapeHtml(b, it.name);
+			if(it.dir)
+				b.append('/');
+			b.append("</a></td><td align='right'>");
+			if(it.dir)
+				b.append('-');
+			else
+				b.append(it.size);
+			b.append("</td><td>").append(HTTPDate.format(it.modified)).append("</td></tr>\n");
+		}
+
+		private static void jsonRow(StringBuilder b, Item it, boolean comma) {
+			if(comma)
+				b.append(',');
+			b.append("\n{\"name\":\"");
+			escapeJson(b, it.name);
+			b.append("\",\"type\":\"").append(it.dir ? "directory" : "file").append('"');
+			if(!it.dir)
+				b.append(",\"size\":").append(it.size);
+			b.append(",\"modified\":\"").append(HTTPDate.formatISO(it.modified)).append("\"}");
+		}
+	}
+
+	/**
+	 * Create the directory handler
+	 * @param root Server root, locations are relative to it
+	 * @param indexName File served in place of a listing if a directory has one
+	 * @param maxDirs Directories kept, 0 to scan every time
+	 */
+	public DirectoryListing(File root, String indexName, int maxDirs) {
+		this.root = root.toPath().toAbsolutePath().normalize();
+		this.indexName = indexName;
+		this.maxDirs = maxDirs;
+
+		if(maxDirs > 0) {
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+			}
+			catch(IOException e) {
+				System.out.println("WARNING: Directory changes cannot be watched, listings are not cached: " + e.getMessage());
+				watcher = null;
+			}
+			catch(UnsupportedOperationException e) {
+				System.out.println("WARNING: Directory changes cannot be watched, listings are not cached.");
+				watcher = null;
+			}
+		}
+
+		if(watcher != null) {
+			Thread t = new Thread(this, "asock-dirwatch");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Create the directory handler from the server settings
+	 * @param sc Server configuration
+	 * @return The handler
+	 */
+	public static DirectoryListing fromConfig(ServerConfig sc) {
+		return new DirectoryListing(new File(sc.getSetting("server.root")), sc.getSetting("server.index"),
+				sc.getIntSetting("server.listing.cache"));
+	}
+
+	/**
+	 * Get a directory's index file and entries
+	 * @param dir The directory
+	 * @return The listing, null if the directory cannot be read
+	 */
+	public Listing get(File dir) {
+		Path p = dir.toPath().toAbsolutePath().normalize();
+		Listing l = listings.get(p);
+		if(l != null) {
+			hits.increment();
+			return l;
+		}
+		misses.increment();
+
+		// watch before scanning so a change during the scan is not missed
+		WatchKey key = null;
+		long seen = changes.get();
+		if(watcher != null) {
+			try {
+				key = p.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			catch(IOException e) {
+				key = null;
+			}
+		}
+
+		l = scan(p, key);
+		if(l == null || key == null)
+			return l;
+
+		if(listings.size() >= maxDirs)
+			evictOne();
+		listings.put(p, l);
+		// something changed while scanning, it may have been this directory. Registering a
+		// directory that is already watched gives back its key, so an eviction of the old
+		// listing may also have cancelled the key after it was registered here.
+		if(changes.get() != seen || !key.isValid())
+			listings.remove(p, l);
+		return l;
+	}
+
+	/**
+	 * Read a directory
+	 * @return The listing, null if it cannot be read
+	 */
+	private Listing scan(Path dir, WatchKey key) {
+		File idx = new File(dir.toFile(), indexName);
+		String loc = "/" + root.relativize(dir).toString().replace(File.separatorChar, '/');
+		if(!loc.endsWith("/"))
+			loc += "/";
+		if(idx.isFile())
+			return new Listing(idx, loc, Collections.<Item>emptyList(), key);
+
+		List<Item> items = new ArrayList<Item>();
+		DirectoryStream<Path> ds = null;
+		try {
+			ds = Files.newDirectoryStream(dir);
+			for(Path p : ds) {
+				String name = p.getFileName().toString();
+				// hidden files are not listed
+				if(name.startsWith("."))
+					continue;
+				try {
+					BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+					items.add(new Item(name, a.isDirectory(), a.size(), a.lastModifiedTime().toMillis()));
+				}
+				catch(IOException e) {
+					// removed since the directory was read
+				}
+			}
+		}
+		catch(IOException e) {
+			return null;
+		}
+		finally {
+			if(ds != null) {
+				try {
+					ds.close();
+				}
+				catch(IOException e) {
+					// nothing left to read
+				}
+			}
+		}
+
+		// directories first, then by name
+		Collections.sort(items, new Comparator<Item>() {
+			public int compare(Item a, Item b) {
+				if(a.dir != b.dir)
+					return a.dir ? -1 : 1;
+				return a.name.compareTo(b.name);
+			}
+		});
+		return new Listing(null, loc, items, key);
+	}
+
+	/**
+	 * Drop some directory to make room, it is no longer watched. A listing of the same
+	 * directory being added meanwhile sees its key cancelled and is not kept.
+	 */
+	private void evictOne() {
+		Iterator<Path> it = listings.keySet().iterator();
+		if(!it.hasNext())
+			return;
+		Path p = it.next();
+		Listing l = listings.remove(p);
+		if(l != null && l.key != null)
+			l.key.cancel();
+	}
+
+	/**
+	 * Watch thread: drop the listing of every directory that changes
+	 */
+	public void run() {
+		while(true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+			catch(ClosedWatchServiceException e) {
+				return;
+			}
+
+			// every kind of event, including OVERFLOW, means the listing is out of date
+			key.pollEvents();
+			changes.incrementAndGet();
+			Path dir = (Path)key.watchable();
+			if(listings.remove(dir) != null)
+				invalidations.increment();
+			// the directory itself is gone
+			if(!key.reset())
+				listings.remove(dir);
+		}
+	}
+
+	/**
+	 * @return Requests answered from a cached directory
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Requests that had to scan the directory
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Cached directories dropped because they changed
+	 */
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * @return Directories currently cached
+	 */
+	public int getCount() {
+		return listings.size();
+	}
+
+	private static void escapeHtml(StringBuilder b, String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '<': b.append("&lt;"); break;
+				case '>': b.append("&gt;"); break;
+				case '&': b.append("&amp;"); break;
+				case '"': b.append("&quot;"); break;
+				case '\'': b.append("&#39;"); break;
+				default: b.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Percent-encode a file name for a link, everything but unreserved characters is encoded
+	 */
+	private static void escapeUrl(StringBuilder b, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		for(int i = 0; i < bytes.length; i++) {
+			int c = bytes[i] & 0xff;
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '.' || c == '_' || c == '~') {
+				b.append((char)c);
+			}
+			else {
+				b.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+						.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+	}
+
+	private static void escapeJson(StringBuilder b, String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				b.append('\\').append(c);
+			else if(c < 0x20)
+				b.append(String.format("\\u%04x", (int)c));
+			else
+				b.append(c);
+		}
+	}
+}
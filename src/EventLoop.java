@@ -0,0 +1,112 @@
+/*
+ * File: EventLoop.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: One thread with its own Selector. It waits for its connections to become readable or
+ *       writable and runs their sessions, and runs tasks posted to it from other threads
+ *       (new connections, finished responses, timeouts). Everything a session does happens
+ *       on the loop that owns it, so session state is never shared between threads.
+ */
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+public class EventLoop implements Runnable {
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Thread thread;
+
+	/**
+	 * Open the selector and start the loop thread
+	 * @param name Name of the loop thread
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Run a task on the loop thread
+	 * @param r Task to run
+	 */
+	public void execute(Runnable r) {
+		tasks.add(r);
+		// the loop checks the queue before it waits again, it only has to be woken from outside
+		if(Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+
+	/**
+	 * @return True if called on the loop thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * @return Selector of this loop, only to be used on the loop thread
+	 */
+	public Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Wait for ready channels and run tasks until the selector is closed
+	 */
+	public void run() {
+		while(true) {
+			try {
+				if(tasks.isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+			}
+			catch(ClosedSelectorException e) {
+				return;
+			}
+			catch(IOException e) {
+				AccessLog.message("ERROR: Event loop select failed.", e);
+				continue;
+			}
+
+			Runnable r;
+			while((r = tasks.poll()) != null) {
+				try {
+					r.run();
+				}
+				catch(RuntimeException e) {
+					AccessLog.message("ERROR: Event loop task failed.", e);
+				}
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey k = it.next();
+				it.remove();
+				if(k.isValid())
+					((SelectorSession)k.attachment()).ready();
+			}
+		}
+	}
+
+	/**
+	 * Stop the loop
+	 */
+	public void close() {
+		try {
+			selector.close();
+		}
+		catch(IOException e) {
+			// already closed
+		}
+	}
+}
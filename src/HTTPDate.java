@@ -0,0 +1,86 @@
+/*
+ * File: HTTPDate.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Format and parse HTTP dates (IMF-fixdate, i.e. "Sun, 06 Nov 1994 08:49:37 GMT").
+ *       The formatters are immutable so these can be called from any thread. The current
+ *       date is formatted at most once per second and shared by all threads.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+
+public class HTTPDate {
+
+	private static final DateTimeFormatter IMF_FIXDATE =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * The current date, replaced as a whole so readers always see a matching pair
+	 */
+	private static final class Current {
+		private final long second;
+		private final byte[] bytes;
+
+		Current(long s, byte[] b) {
+			second = s;
+			bytes = b;
+		}
+	}
+	private static volatile Current current = new Current(-1, null);
+
+	/**
+	 * Format a time as an HTTP date
+	 * @param millis Milliseconds since the epoch
+	 * @return Date in IMF-fixdate form
+	 */
+	public static String format(long millis) {
+		return IMF_FIXDATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Get the current time as an HTTP date
+	 * @return Encoded date, shared so it must not be changed
+	 */
+	public static byte[] currentBytes() {
+		long second = System.currentTimeMillis() / 1000;
+		Current c = current;
+		if(c.second != second) {
+			// two threads may both format the new second, either result is fine
+			c = new Current(second, format(second * 1000).getBytes(StandardCharsets.ISO_8859_1));
+			current = c;
+		}
+		return c.bytes;
+	}
+
+	/**
+	 * Format a time for logs
+	 * @param millis Milliseconds since the epoch
+	 * @return Date in ISO 8601 form, i.e. 2026-10-18T03:12:14.123Z
+	 */
+	public static String formatISO(long millis) {
+		return DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parse an HTTP date sent by a client
+	 * @param date Date in IMF-fixdate (or RFC 1123) form
+	 * @return Milliseconds since the epoch, -1 if the date cannot be parsed
+	 */
+	public static long parse(String date) {
+		if(date == null)
+			return -1;
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		}
+		catch(DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -28,9 +28,12 @@ public class HTTPHeader {
 	private int responseCode;
 	private String responseMessage;
 	
-	// TODO: may or may not be better to have standard fields hard-coded instead of create maps for each request
+	// requests from HTTPRequestParser read their fields from the parser's fixed slots, the
+	// map is only built if all fields are asked for or changed
 	private Map<String,String> headers = null;
+	private HTTPRequestParser parsed = null;
 	private boolean valid = true;
+	private RequestBody body; // null if the request had none
 	
 	/**
 	 * Initialize a response header
@@ -45,6 +48,25 @@ public class HTTPHeader {
 		headers = new HashMap<String,String>();
 	}
 	
+	/**
+	 * Wrap a request header read by HTTPRequestParser. Field values are read from the
+	 * parser's buffer, so this object is only usable until the parser is reset.
+	 * @param p Parser that has parsed a whole header (or failed to)
+	 */
+	public HTTPHeader(HTTPRequestParser p) {
+		isRequest = true;
+		
+		if(p == null || !p.isDone()) {
+			valid = false;
+			return;
+		}
+		
+		parsed = p;
+		requestMethod = p.getMethod();
+		requestLocation = p.getLocation();
+		requestHTTPVersion = p.getVersion();
+	}
+	
 	/**
 	 * Attempt to parse a HTTP header
 	 * @param rawData The raw request data
@@ -154,7 +176,7 @@ public class HTTPHeader {
 		}
 		
 		// get all key value pairs (header and corresponding value)
-		Iterator<Entry<String,String>> hv = headers.entrySet().iterator();
+		Iterator<Entry<String,String>> hv = fields().entrySet().iterator();
 		Entry<String,String> temp;
 		while(hv.hasNext()) {
 			temp = hv.next();
@@ -175,8 +197,10 @@ public class HTTPHeader {
 	 * @param name The name of the header field
 	 * @return Value of the field, null if it does not exist
 	 */
-	public String getAttribute(String name) {		
-		return headers.get(name);
+	public String getAttribute(String name) {
+		if(headers == null && parsed != null)
+			return parsed.getHeader(name);
+		return fields().get(name);
 	}
 	
 	/**
@@ -185,7 +209,7 @@ public class HTTPHeader {
 	 * @param value Value the field has
 	 */
 	public void setAttribute(String name, String value) {		
-		headers.put(name, value);
+		fields().put(name, value);
 	}
 	
 	/**
@@ -193,6 +217,31 @@ public class HTTPHeader {
 	 * @return Map of header fields
 	 */
 	public Map<String,String> getAll() {
+		return fields();
+	}
+	
+	/**
+	 * Copy the fields out of the parser so this header stays usable after the parser is
+	 * reset and its buffer reused
+	 */
+	public void detach() {
+		fields();
+		parsed = null;
+	}
+	
+	/**
+	 * Get the map of header fields, building it from the parser if needed
+	 * @return Map of header fields
+	 */
+	private Map<String,String> fields() {
+		if(headers == null) {
+			headers = new HashMap<String,String>();
+			if(parsed != null) {
+				int count = parsed.getHeaderCount();
+				for(int i = 0; i < count; i++)
+					headers.put(parsed.getHeaderName(i), parsed.getHeaderValue(i));
+			}
+		}
 		return headers;
 	}
 	
@@ -212,6 +261,23 @@ public class HTTPHeader {
 		return requestLocation;
 	}
 	
+	/**
+	 * Get the body sent with the request. It is only readable until the response is sent.
+	 * @return The body, null if there was none
+	 */
+	public RequestBody getBody() {
+		return body;
+	}
+	
+	/**
+	 * Attach the body that was read after this header
+	 * @param b The body, null for none. A body streamed to a Router.BodyHandler is not
+	 *          attached, the handler already has it.
+	 */
+	public void setBody(BodyDecoder.Sink b) {
+		body = b instanceof RequestBody ? (RequestBody)b : null;
+	}
+	
 	/**
 	 * Get the HTTP version
 	 * @return HTTP version as a String
@@ -227,4 +293,48 @@ public class HTTPHeader {
 	public boolean isValid() {
 		return valid;
 	}
+
+	/**
+	 * Determine if the client wants the connection kept open after the response.
+	 * HTTP/1.1 defaults to persistent connections unless "Connection: close" is sent,
+	 * HTTP/1.0 only persists with an explicit "Connection: keep-alive".
+	 * @return True if the connection should be reused
+	 */
+	public boolean isKeepAlive() {
+		if(!isRequest || !valid || requestHTTPVersion == null)
+			return false;
+
+		// compare in the parser's buffer without creating a String
+		if(headers == null && parsed != null) {
+			if(requestHTTPVersion.equalsIgnoreCase("HTTP/1.1"))
+				return !parsed.headerEquals(HTTPRequestParser.CONNECTION, "close");
+			return parsed.headerEquals(HTTPRequestParser.CONNECTION, "keep-alive");
+		}
+
+		String conn = getAttributeIgnoreCase("Connection");
+		if(requestHTTPVersion.equalsIgnoreCase("HTTP/1.1"))
+			return conn == null || !conn.equalsIgnoreCase("close");
+
+		return conn != null && conn.equalsIgnoreCase("keep-alive");
+	}
+
+	/**
+	 * Get a header by name without regard to case (field names are case-insensitive)
+	 * @param name The name of the header field
+	 * @return Value of the field, null if it does not exist
+	 */
+	public String getAttributeIgnoreCase(String name) {
+		if(headers == null && parsed != null)
+			return parsed.getHeader(name);
+		
+		String val = fields().get(name);
+		if(val != null)
+			return val;
+
+		for(Entry<String,String> e : headers.entrySet()) {
+			if(e.getKey().equalsIgnoreCase(name))
+				return e.getValue();
+		}
+		return null;
+	}
 }
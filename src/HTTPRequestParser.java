@@ -0,0 +1,497 @@
+/*
+ * File: HTTPRequestParser.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Incremental HTTP request header parser that works directly on the session's read
+ *       buffer. Parsing state is kept between reads so a request can arrive in any number of
+ *       pieces. Nothing is copied out of the buffer while parsing: the request line and the
+ *       header fields are stored as offsets, standard fields in fixed slots, and Strings are
+ *       only created when a value is asked for.
+ */
+
+import java.nio.ByteBuffer;
+
+
+public class HTTPRequestParser {
+
+	// standard header fields, these have fixed slots
+	public static final int HOST = 0;
+	public static final int CONNECTION = 1;
+	public static final int CONTENT_LENGTH = 2;
+	public static final int CONTENT_TYPE = 3;
+	public static final int TRANSFER_ENCODING = 4;
+	public static final int ACCEPT = 5;
+	public static final int ACCEPT_ENCODING = 6;
+	public static final int IF_NONE_MATCH = 7;
+	public static final int IF_MODIFIED_SINCE = 8;
+	public static final int RANGE = 9;
+	public static final int IF_RANGE = 10;
+	public static final int USER_AGENT = 11;
+	public static final int EXPECT = 12;
+
+	private static final String[] standardNames = {
+		"Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding",
+		"Accept", "Accept-Encoding", "If-None-Match", "If-Modified-Since", "Range",
+		"If-Range", "User-Agent", "Expect"
+	};
+	// lower case bytes and hashes of the standard names for matching while parsing
+	private static final byte[][] standardBytes = new byte[standardNames.length][];
+	private static final int[] standardHashes = new int[standardNames.length];
+
+	// request methods packed into a long, one byte per character
+	private static final HTTPHeader.method[] methods = HTTPHeader.method.values();
+	private static final long[] methodBits = new long[methods.length];
+
+	// the two versions anyone sends, returned without creating Strings
+	private static final String HTTP_1_1 = "HTTP/1.1";
+	private static final String HTTP_1_0 = "HTTP/1.0";
+
+	static {
+		for(int i = 0; i < standardNames.length; i++) {
+			standardBytes[i] = new byte[standardNames[i].length()];
+			int h = 0;
+			for(int j = 0; j < standardBytes[i].length; j++) {
+				standardBytes[i][j] = (byte)lower(standardNames[i].charAt(j));
+				h = 31*h + standardBytes[i][j];
+			}
+			standardHashes[i] = h;
+		}
+		for(int i = 0; i < methods.length; i++) {
+			String name = methods[i].name();
+			for(int j = 0; j < name.length(); j++)
+				methodBits[i] = (methodBits[i] << 8) | name.charAt(j);
+		}
+	}
+
+	// parser states
+	private static final int S_METHOD = 0;
+	private static final int S_URI = 1;
+	private static final int S_VERSION = 2;
+	private static final int S_LINE_LF = 3; // CR seen at the end of a line, LF must follow
+	private static final int S_LINE_START = 4; // start of a header line (or the blank line)
+	private static final int S_NAME = 5;
+	private static final int S_VALUE_START = 6; // skipping whitespace after ':'
+	private static final int S_VALUE = 7;
+	private static final int S_END_LF = 8; // CR of the blank line seen
+	private static final int S_DONE = 9;
+	private static final int S_ERROR = 10;
+
+	private ByteBuffer buf;
+	private int state;
+	private int pos; // next byte of buf to look at
+
+	// request line
+	private long methodAcc;
+	private int methodLen;
+	private HTTPHeader.method requestMethod;
+	private int uriStart, uriEnd;
+	private int versionStart, versionEnd;
+
+	// header field being parsed
+	private int nameStart, nameEnd, nameHash;
+	private int valueStart, valueEnd;
+
+	// standard fields: start and end offsets of the value, -1 if not sent
+	private int[] slotStart;
+	private int[] slotEnd;
+	// other fields: name start, name end, value start, value end
+	private int[] extra;
+	private int extraCount;
+
+	private int headerEnd; // offset of the first byte after the blank line
+	private boolean lengthConflict; // Content-Length was sent more than once with different values
+
+	/**
+	 * Create a parser, it can be reused for any number of requests
+	 */
+	public HTTPRequestParser() {
+		slotStart = new int[standardNames.length];
+		slotEnd = new int[standardNames.length];
+		extra = new int[4*16];
+		reset();
+	}
+
+	/**
+	 * Clear all state to parse a new request from the start of the buffer
+	 */
+	public void reset() {
+		state = S_METHOD;
+		pos = 0;
+		methodAcc = 0;
+		methodLen = 0;
+		requestMethod = null;
+		uriStart = uriEnd = versionStart = versionEnd = -1;
+		for(int i = 0; i < slotStart.length; i++)
+			slotStart[i] = slotEnd[i] = -1;
+		extraCount = 0;
+		headerEnd = -1;
+		lengthConflict = false;
+	}
+
+	/**
+	 * Parse the bytes that have been read into the buffer since the last call. Bytes from
+	 * 0 to the buffer position are the request so far; the buffer is not modified.
+	 * @param b Read buffer, must be the same buffer between calls until reset()
+	 * @return True once the whole header has been parsed
+	 */
+	@SuppressWarnings("fallthrough") // S_VALUE_START hands its first byte on to S_VALUE
+	public boolean parse(ByteBuffer b) {
+		buf = b;
+		int end = b.position();
+
+		while(pos < end && state < S_DONE) {
+			int c = b.get(pos) & 0xff;
+
+			switch(state) {
+				case S_METHOD:
+					if(methodLen == 0 && (c == '\r' || c == '\n')) {
+						// empty lines before the request line are ignored
+					}
+					else if(c == ' ') {
+						requestMethod = matchMethod();
+						if(requestMethod == null) {
+							state = S_ERROR;
+							break;
+						}
+						uriStart = pos + 1;
+						state = S_URI;
+					}
+					else if(c < 'A' || c > 'Z' || ++methodLen > 7) {
+						state = S_ERROR;
+					}
+					else {
+						methodAcc = (methodAcc << 8) | c;
+					}
+					break;
+
+				case S_URI:
+					if(c == ' ') {
+						uriEnd = pos;
+						versionStart = pos + 1;
+						state = S_VERSION;
+					}
+					else if(c == '\r' || c == '\n') {
+						state = S_ERROR;
+					}
+					break;
+
+				case S_VERSION:
+					if(c == '\r' || c == '\n') {
+						versionEnd = pos;
+						if(uriEnd == uriStart || versionEnd == versionStart)
+							state = S_ERROR;
+						else
+							state = (c == '\r') ? S_LINE_LF : S_LINE_START;
+					}
+					else if(c == ' ') {
+						state = S_ERROR;
+					}
+					break;
+
+				case S_LINE_LF:
+					state = (c == '\n') ? S_LINE_START : S_ERROR;
+					break;
+
+				case S_LINE_START:
+					if(c == '\r') {
+						state = S_END_LF;
+					}
+					else if(c == '\n') {
+						finish(pos + 1);
+					}
+					else if(c == ' ' || c == '\t' || c == ':') {
+						// folded lines and empty names are not accepted
+						state = S_ERROR;
+					}
+					else {
+						nameStart = pos;
+						nameHash = lower(c);
+						state = S_NAME;
+					}
+					break;
+
+				case S_NAME:
+					if(c == ':') {
+						nameEnd = pos;
+						valueStart = valueEnd = pos + 1;
+						state = S_VALUE_START;
+					}
+					else if(c <= ' ') {
+						state = S_ERROR;
+					}
+					else {
+						nameHash = 31*nameHash + lower(c);
+					}
+					break;
+
+				case S_VALUE_START:
+					if(c == ' ' || c == '\t') {
+						valueStart = valueEnd = pos + 1;
+						break;
+					}
+					state = S_VALUE;
+					// fall through, this byte is part of the value (or ends the line)
+				case S_VALUE:
+					if(c == '\r' || c == '\n') {
+						storeField();
+						state = (c == '\r') ? S_LINE_LF : S_LINE_START;
+					}
+					else if(c != ' ' && c != '\t') {
+						valueEnd = pos + 1; // trailing whitespace is trimmed
+					}
+					break;
+
+				case S_END_LF:
+					if(c == '\n')
+						finish(pos + 1);
+					else
+						state = S_ERROR;
+					break;
+			}
+			pos++;
+		}
+
+		return state == S_DONE;
+	}
+
+	/**
+	 * Mark the header as complete
+	 * @param end Offset of the first byte after the header
+	 */
+	private void finish(int end) {
+		headerEnd = end;
+		state = S_DONE;
+	}
+
+	/**
+	 * Match the packed method bytes against the known methods
+	 * @return The method, null if unknown
+	 */
+	private HTTPHeader.method matchMethod() {
+		for(int i = 0; i < methodBits.length; i++) {
+			if(methodBits[i] == methodAcc)
+				return methods[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Store the field that was just parsed in its slot or in the extra list
+	 */
+	private void storeField() {
+		int slot = findStandard(nameStart, nameEnd, nameHash);
+		if(slot >= 0) {
+			// a second length that disagrees leaves the body framing up to whoever reads which
+			if(slot == CONTENT_LENGTH && slotStart[slot] >= 0 && !sameBytes(slotStart[slot], slotEnd[slot], valueStart, valueEnd))
+				lengthConflict = true;
+			slotStart[slot] = valueStart;
+			slotEnd[slot] = valueEnd;
+			return;
+		}
+
+		if(4*(extraCount+1) > extra.length) {
+			int[] bigger = new int[extra.length*2];
+			System.arraycopy(extra, 0, bigger, 0, extra.length);
+			extra = bigger;
+		}
+		int i = 4*extraCount++;
+		extra[i] = nameStart;
+		extra[i+1] = nameEnd;
+		extra[i+2] = valueStart;
+		extra[i+3] = valueEnd;
+	}
+
+	/**
+	 * Find the standard slot of a field name in the buffer
+	 * @return Slot number, -1 if it is not a standard field
+	 */
+	private int findStandard(int start, int end, int hash) {
+		for(int i = 0; i < standardBytes.length; i++) {
+			if(standardHashes[i] != hash || standardBytes[i].length != end - start)
+				continue;
+			int j;
+			for(j = 0; j < standardBytes[i].length; j++) {
+				if(lower(buf.get(start+j) & 0xff) != standardBytes[i][j])
+					break;
+			}
+			if(j == standardBytes[i].length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Lower case an ASCII letter, other bytes are returned unchanged
+	 */
+	private static int lower(int c) {
+		return (c >= 'A' && c <= 'Z') ? c | 0x20 : c;
+	}
+
+	/**
+	 * Create a String from a range of the buffer (ISO-8859-1)
+	 */
+	private String string(int start, int end) {
+		char[] c = new char[end - start];
+		for(int i = 0; i < c.length; i++)
+			c[i] = (char)(buf.get(start+i) & 0xff);
+		return new String(c);
+	}
+
+	/**
+	 * Compare a range of the buffer to an ASCII String ignoring case
+	 */
+	private boolean equalsIgnoreCase(int start, int end, String s) {
+		if(end - start != s.length())
+			return false;
+		for(int i = 0; i < s.length(); i++) {
+			if(lower(buf.get(start+i) & 0xff) != lower(s.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two ranges of the buffer
+	 */
+	private boolean sameBytes(int start, int end, int start2, int end2) {
+		if(end - start != end2 - start2)
+			return false;
+		for(int i = 0; i < end - start; i++) {
+			if(buf.get(start+i) != buf.get(start2+i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True once the whole header has been parsed
+	 */
+	public boolean isDone() {
+		return state == S_DONE;
+	}
+
+	/**
+	 * @return True if the request could not be parsed
+	 */
+	public boolean isError() {
+		return state == S_ERROR;
+	}
+
+	/**
+	 * @return True if Content-Length was sent more than once with different values
+	 */
+	public boolean hasLengthConflict() {
+		return lengthConflict;
+	}
+
+	/**
+	 * @return Offset of the first byte after the header, -1 if not done
+	 */
+	public int getHeaderEnd() {
+		return headerEnd;
+	}
+
+	/**
+	 * @return The request method
+	 */
+	public HTTPHeader.method getMethod() {
+		return requestMethod;
+	}
+
+	/**
+	 * @return The requested location
+	 */
+	public String getLocation() {
+		return uriEnd < 0 ? null : string(uriStart, uriEnd);
+	}
+
+	/**
+	 * @return The HTTP version of the request
+	 */
+	public String getVersion() {
+		if(versionEnd < 0)
+			return null;
+		if(equalsIgnoreCase(versionStart, versionEnd, HTTP_1_1))
+			return HTTP_1_1;
+		if(equalsIgnoreCase(versionStart, versionEnd, HTTP_1_0))
+			return HTTP_1_0;
+		return string(versionStart, versionEnd);
+	}
+
+	/**
+	 * Get a standard header field
+	 * @param slot One of the field constants i.e. HTTPRequestParser.HOST
+	 * @return Value of the field, null if it was not sent
+	 */
+	public String getHeader(int slot) {
+		if(slotStart[slot] < 0)
+			return null;
+		return string(slotStart[slot], slotEnd[slot]);
+	}
+
+	/**
+	 * Compare a standard header field to a value without creating a String
+	 * @param slot One of the field constants
+	 * @param value Value to compare to, ignoring case
+	 * @return True if the field was sent with that value
+	 */
+	public boolean headerEquals(int slot, String value) {
+		return slotStart[slot] >= 0 && equalsIgnoreCase(slotStart[slot], slotEnd[slot], value);
+	}
+
+	/**
+	 * Get a header field by name, ignoring case
+	 * @param name The name of the header field
+	 * @return Value of the field, null if it was not sent
+	 */
+	public String getHeader(String name) {
+		for(int i = 0; i < standardNames.length; i++) {
+			if(standardNames[i].equalsIgnoreCase(name))
+				return getHeader(i);
+		}
+		// last one sent wins, like the standard slots
+		for(int i = 4*(extraCount-1); i >= 0; i -= 4) {
+			if(equalsIgnoreCase(extra[i], extra[i+1], name))
+				return string(extra[i+2], extra[i+3]);
+		}
+		return null;
+	}
+
+	/**
+	 * @return Number of header fields sent (duplicates of standard fields counted once)
+	 */
+	public int getHeaderCount() {
+		int count = extraCount;
+		for(int i = 0; i < slotStart.length; i++) {
+			if(slotStart[i] >= 0)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the name of the n-th header field, standard fields first
+	 * @param n Field number from 0 to getHeaderCount()-1
+	 * @return Field name
+	 */
+	public String getHeaderName(int n) {
+		for(int i = 0; i < slotStart.length; i++) {
+			if(slotStart[i] >= 0 && n-- == 0)
+				return standardNames[i];
+		}
+		return string(extra[4*n], extra[4*n+1]);
+	}
+
+	/**
+	 * Get the value of the n-th header field, standard fields first
+	 * @param n Field number from 0 to getHeaderCount()-1
+	 * @return Field value
+	 */
+	public String getHeaderValue(int n) {
+		for(int i = 0; i < slotStart.length; i++) {
+			if(slotStart[i] >= 0 && n-- == 0)
+				return getHeader(i);
+		}
+		return string(extra[4*n+2], extra[4*n+3]);
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * File: HTTPResponse.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: A response ready to be sent to a client. Holds the serialized header followed by
+ *       any number of body parts (in-memory buffers, file regions or streams). The session
+ *       pulls buffers out of this object and writes them with gathering writes.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+
+public class HTTPResponse {
+
+	// most buffers handed to a single gathering write
+	private static final int MAX_GATHER = 16;
+	// size of the heap copy used for stream bodies (matches the old session buffer)
+	private static final int STREAM_CHUNK = 4096;
+
+	private ByteBuffer header;
+	private LinkedList<Part> body;
+	private int headParts; // leading body parts that still belong to the header
+	private int status; // for metrics only, read from the header
+	private boolean closeAfter; // the body is ended by closing the connection
+
+	/**
+	 * A piece of the response body
+	 */
+	private static abstract class Part {
+		/**
+		 * Fill the scratch buffer or hand back a buffer to be written as is.
+		 * @param scratch Empty buffer that may be filled with data
+		 * @return Buffer to write, null if this part has nothing left
+		 */
+		abstract ByteBuffer next(ByteBuffer scratch) throws IOException;
+
+		/**
+		 * @return True if next() has to copy into the scratch buffer
+		 */
+		abstract boolean usesScratch();
+
+		/**
+		 * @return True if all of this part has been handed out
+		 */
+		abstract boolean isDone();
+
+		void close() {}
+	}
+
+	/**
+	 * In-memory body, written without copying
+	 */
+	private static class BufferPart extends Part {
+		private ByteBuffer data;
+
+		BufferPart(ByteBuffer b) {
+			data = b;
+		}
+		ByteBuffer next(ByteBuffer scratch) {
+			ByteBuffer out = data;
+			data = null;
+			return out;
+		}
+		boolean usesScratch() {
+			return false;
+		}
+		boolean isDone() {
+			return data == null;
+		}
+	}
+
+	/**
+	 * Region of a file read straight into the (direct) scratch buffer
+	 */
+	private static class FilePart extends Part {
+		private FileChannel fc;
+		private long position;
+		private long remaining;
+		private boolean closeWhenDone;
+
+		FilePart(FileChannel f, long pos, long len, boolean close) {
+			fc = f;
+			position = pos;
+			remaining = len;
+			closeWhenDone = close;
+		}
+		ByteBuffer next(ByteBuffer scratch) throws IOException {
+			if(remaining < scratch.remaining())
+				scratch.limit(scratch.position() + (int)remaining);
+			int read = fc.read(scratch, position);
+			if(read < 0)
+				throw new IOException("File ended " + remaining + " bytes early");
+			position += read;
+			remaining -= read;
+			scratch.flip();
+			if(remaining == 0)
+				close();
+			return scratch;
+		}
+		boolean usesScratch() {
+			return true;
+		}
+		boolean isDone() {
+			return remaining == 0;
+		}
+		void close() {
+			if(closeWhenDone && fc != null) {
+				try {
+					fc.close();
+				}
+				catch(IOException e) {
+					AccessLog.message("WARNING: Could not close file.", null);
+				}
+				fc = null;
+			}
+		}
+	}
+
+	/**
+	 * Body of unknown size read through a small heap array
+	 */
+	private static class StreamPart extends Part {
+		private InputStream in;
+		private byte[] arr;
+		private boolean done;
+
+		StreamPart(InputStream i) {
+			in = i;
+			arr = new byte[STREAM_CHUNK];
+			done = false;
+		}
+		ByteBuffer next(ByteBuffer scratch) throws IOException {
+			int size = in.read(arr, 0, Math.min(arr.length, scratch.remaining()));
+			if(size < 0) {
+				close();
+				return null;
+			}
+			scratch.put(arr, 0, size);
+			scratch.flip();
+			return scratch;
+		}
+		boolean usesScratch() {
+			return true;
+		}
+		boolean isDone() {
+			return done;
+		}
+		void close() {
+			done = true;
+			try {
+				in.close();
+			}
+			catch(IOException e) {
+				AccessLog.message("WARNING: Could not close stream.", null);
+			}
+		}
+	}
+
+	/**
+	 * Body of unknown length written by a source, sent as chunks
+	 */
+	private static class ChunkedPart extends Part {
+		private ChunkedOutput out;
+
+		ChunkedPart(ChunkedOutput o) {
+			out = o;
+		}
+		ByteBuffer next(ByteBuffer scratch) throws IOException {
+			return out.next(scratch);
+		}
+		boolean usesScratch() {
+			return true;
+		}
+		boolean isDone() {
+			return out.isDone();
+		}
+	}
+
+	/**
+	 * Create a response with the given serialized header
+	 * @param head Header bytes INCLUDING the empty line ending the header
+	 */
+	public HTTPResponse(ByteBuffer head) {
+		header = head;
+		body = new LinkedList<Part>();
+		status = statusOf(head);
+	}
+
+	/**
+	 * Read the status code from the start of a header
+	 * @return The code, 0 if the buffer does not start with a status line
+	 */
+	private static int statusOf(ByteBuffer head) {
+		if(head == null || head.remaining() < 12 || head.get(head.position() + 8) != ' ')
+			return 0;
+		int code = 0;
+		for(int i = 9; i < 12; i++) {
+			int d = head.get(head.position() + i) - '0';
+			if(d < 0 || d > 9)
+				return 0;
+			code = code * 10 + d;
+		}
+		return code;
+	}
+
+	/**
+	 * @return Status code of the response, 0 if unknown
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Create a response from a complete header and body in String form
+	 * @param full Response to send
+	 * @return The response
+	 */
+	public static HTTPResponse wrap(String full) {
+		return new HTTPResponse(ByteBuffer.wrap(full.getBytes(Charset.forName("UTF-8"))));
+	}
+
+	/**
+	 * Append more header bytes, sent right after the header given to the constructor. Must
+	 * be called before any body is added.
+	 * @param b Buffer between its position and limit is sent
+	 */
+	public void addHeader(ByteBuffer b) {
+		body.add(new BufferPart(b));
+		headParts++;
+	}
+
+	/**
+	 * Append an in-memory buffer to the body
+	 * @param b Buffer between its position and limit is sent
+	 */
+	public void addBody(ByteBuffer b) {
+		body.add(new BufferPart(b));
+	}
+
+	/**
+	 * Append a region of a file to the body
+	 * @param fc File to read from (the channel position is not changed)
+	 * @param position Offset of the first byte to send
+	 * @param length Number of bytes to send
+	 * @param close True if the channel should be closed once the region is sent
+	 */
+	public void addBody(FileChannel fc, long position, long length, boolean close) {
+		FilePart p = new FilePart(fc, position, length, close);
+		if(length > 0)
+			body.add(p);
+		else
+			p.close();
+	}
+
+	/**
+	 * Append a stream to the body, it is read until it ends and then closed
+	 * @param in Stream to send
+	 */
+	public void addBody(InputStream in) {
+		body.add(new StreamPart(in));
+	}
+
+	/**
+	 * Append a body of unknown length. The header must have Transfer-Encoding: chunked if
+	 * the output is chunked, otherwise the connection is closed after the response.
+	 * @param out Body to send
+	 */
+	public void addBody(ChunkedOutput out) {
+		body.add(new ChunkedPart(out));
+	}
+
+	/**
+	 * Drop the body and keep the header as it is, for HEAD requests. Content-Length still
+	 * describes the body a GET would have received.
+	 */
+	public void dropBody() {
+		while(body.size() > headParts)
+			body.removeLast().close();
+	}
+
+	/**
+	 * Mark the response as ended by closing the connection
+	 * @param close True if the connection must be closed once the response is sent
+	 */
+	public void setCloseAfter(boolean close) {
+		closeAfter = close;
+	}
+
+	/**
+	 * @return True if the connection must be closed once the response is sent
+	 */
+	public boolean isCloseAfter() {
+		return closeAfter;
+	}
+
+	/**
+	 * Determine if the body needs a scratch buffer to be sent
+	 * @return True if any part of the body is copied before writing
+	 */
+	public boolean usesScratch() {
+		for(Part p : body) {
+			if(p.usesScratch())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the next set of buffers to write. The header and in-memory parts are handed out as
+	 * they are; at most one file or stream chunk is read into the scratch buffer per call, so
+	 * all returned buffers must be written before calling this again.
+	 * @param scratch Buffer to fill with file or stream data, may be null if usesScratch() is false
+	 * @return Buffers to write, null once the whole response has been handed out
+	 * @throws IOException If reading the body fails
+	 */
+	public ByteBuffer[] nextWrite(ByteBuffer scratch) throws IOException {
+		List<ByteBuffer> out = new ArrayList<ByteBuffer>(4);
+
+		if(header != null) {
+			out.add(header);
+			header = null;
+		}
+
+		boolean scratchUsed = false;
+		while(!body.isEmpty() && out.size() < MAX_GATHER) {
+			Part p = body.peek();
+			if(p.usesScratch()) {
+				if(scratchUsed)
+					break;
+				scratch.clear();
+			}
+
+			ByteBuffer b = p.next(scratch);
+			if(p.isDone())
+				body.poll();
+			if(b == null)
+				continue;
+
+			out.add(b);
+			if(p.usesScratch())
+				scratchUsed = true;
+		}
+
+		if(out.isEmpty())
+			return null;
+
+		return out.toArray(new ByteBuffer[out.size()]);
+	}
+
+	/**
+	 * Release any files or streams that have not been fully sent
+	 */
+	public void close() {
+		for(Part p : body)
+			p.close();
+		body.clear();
+	}
+}
@@ -7,178 +7,915 @@
  */
 
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.SequenceInputStream;
-import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
-import java.util.Collections;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.TimeZone;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 
 public class HTTPServer {
 	
-	// default date format for all threads to use (only ever needs to be set once)
-	private static SimpleDateFormat defaultSDF;
 	private static ServerConfig conf;
 	private static String serverRoot;
+	// location of the metrics page, null if disabled
+	private static String metricsPath;
+	// handlers by location, static files are mounted on /
+	private static Router router;
+	// send files from a FileChannel instead of the old InputStream path
+	private static boolean sendFile;
+	// small files kept in memory, null if disabled
+	private static ContentCache cache;
+	// index files and listings of directories
+	private static DirectoryListing directories;
+	private static boolean listing;
+	// gzip content coding, compressed files are kept in the cache under the path plus this suffix
+	private static final String GZIP_SUFFIX = "\0gzip";
+	private static boolean gzip;
+	private static int gzipMin;
+	private static int gzipLevel;
+	// types outside the text category that are worth compressing
+	private static final String[] compressibleTypes = {"application/json", "application/javascript", "application/xml", "image/svg+xml"};
+	
+	/**
+	 * Mime type of a file extension with the caching policy of its category. The header
+	 * fields are encoded once here instead of for every response.
+	 */
+	private static class MimeType {
+		private final byte[] contentType; // whole Content-Type line
+		private final byte[] cacheControl; // whole Cache-Control line, null if none
+		private final boolean compressible;
+		
+		MimeType(String type, String category, String cc) {
+			// text is served as UTF-8
+			String ct = "text".equals(category) ? type + "; charset=UTF-8" : type;
+			contentType = ("Content-Type: " + ct + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			cacheControl = cc == null ? null : ("Cache-Control: " + cc + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			
+			boolean c = "text".equals(category);
+			for(int i = 0; i < compressibleTypes.length && !c; i++)
+				c = compressibleTypes[i].equals(type);
+			compressible = c;
+		}
+	}
+	private static Map<String,MimeType> mimeTypes;
+	private static MimeType defaultMime;
+	
+	/**
+	 * A response that only changes in its Date. Everything after the Date field is rendered
+	 * once for each Connection value and sent from a shared buffer.
+	 */
+	private static class FixedResponse {
+		private final int code;
+		private final ByteBuffer keepAlive;
+		private final ByteBuffer close;
+		private final int bodyLength; // the page at the end of both buffers
+		
+		FixedResponse(int code, String html) {
+			this.code = code;
+			bodyLength = html.getBytes(StandardCharsets.UTF_8).length;
+			keepAlive = render(true, html);
+			close = render(false, html);
+		}
+		
+		private static ByteBuffer render(boolean keepAlive, String html) {
+			byte[] body = html.getBytes(StandardCharsets.UTF_8);
+			HeaderWriter w = new HeaderWriter(256 + body.length);
+			w.connection(keepAlive).field(HeaderWriter.CONTENT_TYPE, "text/html; charset=UTF-8")
+					.field(HeaderWriter.CONTENT_LENGTH, body.length).end().raw(body);
+			byte[] all = w.toBytes();
+			ByteBuffer b = ByteBuffer.allocateDirect(all.length);
+			b.put(all);
+			b.flip();
+			return b;
+		}
+		
+		HTTPResponse respond(boolean ka) {
+			HeaderWriter w = new HeaderWriter(64);
+			w.raw(HeaderWriter.statusLine(code)).date();
+			HTTPResponse out = new HTTPResponse(w.toBuffer());
+			ByteBuffer page = (ka ? keepAlive : close).duplicate();
+			ByteBuffer fields = page.duplicate();
+			fields.limit(page.limit() - bodyLength);
+			page.position(fields.limit());
+			out.addHeader(fields);
+			out.addBody(page);
+			out.setCloseAfter(!ka);
+			return out;
+		}
+	}
+	private static final FixedResponse PAGE_400 = errorPage(400);
+	private static final FixedResponse PAGE_404 = errorPage(404);
+	private static final FixedResponse PAGE_413 = errorPage(413);
+	private static final FixedResponse PAGE_431 = errorPage(431);
+	private static final FixedResponse PAGE_500 = errorPage(500);
+	private static final FixedResponse PAGE_503 = errorPage(503);
 	
 	/**
 	 * Initialize the static resources for the server
 	 */
 	public static void initServer(ServerConfig sc) {
-		// set up gmt timezone
-		HTTPServer.defaultSDF = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss");
-		HTTPServer.defaultSDF.setTimeZone(TimeZone.getTimeZone("GMT"));
 		// set the settings for this server
 		HTTPServer.conf = sc;
 		
 		serverRoot = conf.getSetting("server.root");
+		metricsPath = conf.getSetting("server.metrics");
+		if(metricsPath.equalsIgnoreCase("off"))
+			metricsPath = null;
+		sendFile = conf.getBoolSetting("server.sendfile");
+		cache = ContentCache.fromConfig(conf);
+		directories = DirectoryListing.fromConfig(conf);
+		listing = conf.getBoolSetting("server.listing");
+		
+		router = new Router();
+		router.add(null, "/*", staticFiles(serverRoot));
+		if(metricsPath != null) {
+			// rendering the counters does not block, answer on the completion handler thread
+			router.addAsync(HTTPHeader.method.GET, metricsPath, new Router.AsyncHandler() {
+				public CompletableFuture<HTTPResponse> handle(HTTPHeader hh, Router.Match m, boolean keepAlive) {
+					return CompletableFuture.completedFuture(metricsResponse(keepAlive));
+				}
+			});
+		}
+		// compressed bodies live in the cache, so gzip needs it
+		gzip = conf.getBoolSetting("server.gzip") && cache != null;
+		gzipMin = conf.getIntSetting("server.gzip.min");
+		gzipLevel = conf.getIntSetting("server.gzip.level");
+		
+		// mime types are set as mime.category.extension = type
+		mimeTypes = new HashMap<String,MimeType>();
+		for(String category : conf.getChildren("mime")) {
+			String cc = conf.getSetting("cache.control." + category);
+			for(String ext : conf.getChildren("mime." + category)) {
+				String type = conf.getSetting("mime." + category + "." + ext);
+				if(type != null)
+					mimeTypes.put(ext.toLowerCase(), new MimeType(type, category, cc));
+			}
+		}
+		defaultMime = new MimeType(conf.getSetting("mime.default"), null, conf.getSetting("cache.control.default"));
+	}
+	
+	/**
+	 * Get the static content cache
+	 * @return The cache, null if disabled
+	 */
+	public static ContentCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Get the directory handler
+	 * @return The handler
+	 */
+	public static DirectoryListing getDirectories() {
+		return directories;
 	}
 	
 	/**
-	 * Respond to a request given a HTTPHeader
+	 * Get the router, handlers added to it are served next to the static files
+	 * @return The router
+	 */
+	public static Router getRouter() {
+		return router;
+	}
+	
+	/**
+	 * Handler serving the files under a directory, for mounting with a route ending in "/*"
+	 * @param dir Directory the mount point maps to
+	 * @return The handler
+	 */
+	public static Router.Handler staticFiles(final String dir) {
+		return new Router.Handler() {
+			public HTTPResponse handle(HTTPHeader hh, Router.Match m, boolean keepAlive) {
+				// names with spaces or non-ASCII letters come percent-encoded, as listings link them
+				String rest = decodePath(m.getRest());
+				if(rest == null)
+					return get400(0, keepAlive);
+				// nothing above the mounted directory can be reached
+				if(rest.contains("/../") || rest.endsWith("/.."))
+					return get400(4, keepAlive);
+				return respondPath(hh, dir + rest, keepAlive);
+			}
+		};
+	}
+	
+	/**
+	 * Percent-decode a location path. The decoded bytes are read as UTF-8; '+' is kept as it
+	 * is, it only means a space in a query.
+	 * @param s Path as it was sent
+	 * @return The decoded path, null if an escape is malformed or decodes to NUL
+	 */
+	static String decodePath(String s) {
+		if(s.indexOf('%') < 0)
+			return s;
+		
+		// the location was read as ISO-8859-1, so each char is one byte of the request
+		byte[] out = new byte[s.length()];
+		int n = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '%') {
+				int hi = i + 2 < s.length() ? Character.digit(s.charAt(i + 1), 16) : -1;
+				int lo = hi >= 0 ? Character.digit(s.charAt(i + 2), 16) : -1;
+				if(lo < 0 || (hi == 0 && lo == 0))
+					return null;
+				out[n++] = (byte)(hi << 4 | lo);
+				i += 2;
+			}
+			else {
+				out[n++] = (byte)c;
+			}
+		}
+		return new String(out, 0, n, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Find the route of a request whose header has been read
+	 * @param p Parser that has read the request header
+	 * @return The route, null if nothing is mounted at the location
+	 */
+	public static Router.Match find(HTTPRequestParser p) {
+		return router.find(p.getMethod(), p.getLocation());
+	}
+	
+	/**
+	 * Get the sink for the body of a request whose header has been read. A route with a
+	 * Router.BodyHandler may take the body as it arrives, otherwise it is stored.
+	 * @param m Route of the request, from find()
+	 * @param p Parser that has read the request header
+	 * @param memoryLimit Bytes of a stored body kept in memory before it goes to a temp file
+	 * @return Sink for the decoded body
+	 */
+	public static BodyDecoder.Sink openBody(Router.Match m, HTTPRequestParser p, int memoryLimit) {
+		if(m != null && m.getHandler() instanceof Router.BodyHandler) {
+			BodyDecoder.Sink s = ((Router.BodyHandler)m.getHandler()).openBody(new HTTPHeader(p), m);
+			if(s != null)
+				return s;
+		}
+		return new RequestBody(memoryLimit);
+	}
+	
+	/**
+	 * Respond to a request given a HTTPHeader, waiting for the response to be ready
+	 * @param hh HTTPHeader with request information
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	public static HTTPResponse respond(HTTPHeader hh, boolean keepAlive) {
+		return respondAsync(hh, keepAlive).join();
+	}
+	
+	/**
+	 * Start responding to a request. Routing happens on the calling thread; the handler
+	 * decides where the rest of the work runs. The future never fails, errors are turned
+	 * into error pages.
 	 * @param hh HTTPHeader with request information
-	 * @return String with response data
-	 *  
-	 * TODO: Return a stream instead of a string. 
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Future of the response to send
 	 */
-	public static InputStream respond(HTTPHeader hh) {
+	public static CompletableFuture<HTTPResponse> respondAsync(final HTTPHeader hh, boolean keepAlive) {
+		Router.Match m = hh.isValid() ? router.find(hh.getRequestMethod(), hh.getRequestLocation()) : null;
+		return respondAsync(hh, m, keepAlive);
+	}
+	
+	/**
+	 * Start responding to a request that has already been routed
+	 * @param hh HTTPHeader with request information
+	 * @param m Route of the request, from find()
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Future of the response to send
+	 */
+	public static CompletableFuture<HTTPResponse> respondAsync(final HTTPHeader hh, Router.Match m, boolean keepAlive) {
+		CompletableFuture<HTTPResponse> f = route(hh, m, keepAlive);
+		
+		// a HEAD response is the GET response without its body, whichever handler built it
+		if(hh.getRequestMethod() != HTTPHeader.method.HEAD)
+			return f;
+		return f.thenApply(new Function<HTTPResponse, HTTPResponse>() {
+			public HTTPResponse apply(HTTPResponse r) {
+				r.dropBody();
+				return r;
+			}
+		});
+	}
+	
+	/**
+	 * Start the handler of a request
+	 * @param hh HTTPHeader with request information
+	 * @param m Route of the request
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Future of the response to send, never fails
+	 */
+	private static CompletableFuture<HTTPResponse> route(final HTTPHeader hh, Router.Match m, boolean keepAlive) {
 		
 		if(!hh.isValid()) {
-			return new ByteArrayInputStream(get400(0).getBytes(Charset.forName("UTF-8")));
+			return CompletableFuture.completedFuture(get400(0));
 		}
 		
-		// special server info case
-		if(hh.getRequestLocation().equals("/srv.info")) {
-
-			String message = "<div style='font-family: arial; font-size: 16px; padding: 25px; color: rgb(50,50,100);'>Hello from Matt Async Server 0.0.0.0.0.1 Alpha Beta</div>";
-
-			HTTPHeader resp = new HTTPHeader(200,"OK");
-			resp.setAttribute("Date", defaultSDF.format(new Date()) + " GMT");
-			resp.setAttribute("Content-Type", "text/html; charset=UTF-8;");
-			resp.setAttribute("Content-Length", ""+message.length());
-			
-			String out = resp.toString() + message;
-			
-			return new ByteArrayInputStream(out.getBytes(Charset.forName("UTF-8")));
+		if(m == null)
+			return CompletableFuture.completedFuture(get400(4, keepAlive));
+		if(m.getHandler() == null) {
+			HeaderWriter w = HeaderWriter.start(405, keepAlive);
+			w.text("Allow: " + m.getAllow()).newLine().field(HeaderWriter.CONTENT_LENGTH, 0).end();
+			return CompletableFuture.completedFuture(new HTTPResponse(w.toBuffer()));
+		}
+		
+		CompletableFuture<HTTPResponse> f;
+		try {
+			f = m.getHandler().handle(hh, m, keepAlive);
+		}
+		catch(RuntimeException e) {
+			return CompletableFuture.completedFuture(handlerFailed(hh, e));
+		}
+		
+		return f.exceptionally(new Function<Throwable, HTTPResponse>() {
+			public HTTPResponse apply(Throwable t) {
+				return handlerFailed(hh, t);
+			}
+		});
+	}
+	
+	/**
+	 * Error page for a handler that threw or whose future failed
+	 * @param hh Request header
+	 * @param t What went wrong
+	 * @return 503 if the blocking pool is full, 500 otherwise
+	 */
+	private static HTTPResponse handlerFailed(HTTPHeader hh, Throwable t) {
+		if(t instanceof CompletionException && t.getCause() != null)
+			t = t.getCause();
+		if(t instanceof RejectedExecutionException)
+			return get500(3);
+		AccessLog.message("ERROR: Handler failed for " + hh.getRequestLocation(), t);
+		return get500(0);
+	}
+	
+	/**
+	 * Respond with the file or directory at a path
+	 * @param hh Request header
+	 * @param path Path of the file on disk
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	private static HTTPResponse respondPath(HTTPHeader hh, String path, boolean keepAlive) {
+		MimeType mt = mimeFor(path);
+		boolean useGzip = gzip && mt.compressible && Compressor.acceptsGzip(hh.getAttribute("Accept-Encoding"));
+		
+		// answer from memory if the file is cached and unchanged
+		if(cache != null) {
+			ContentCache.Entry ce = cache.get(path);
+			if(ce != null) {
+				ContentCache.Entry gz = useGzip ? gzipEntry(path, ce, mt) : null;
+				if(gz != null)
+					return fileResponse(hh, mt, gz.getLength(), gz.getModified(), gz.getETag(), gz, null, "gzip", keepAlive);
+				return fileResponse(hh, mt, ce.getLength(), ce.getModified(), ce.getETag(), ce, null, null, keepAlive);
+			}
 		}
 		
 		// search for the file in the server directory root
+		File location = null;
+		FileChannel fc = null;
 		FileInputStream fs = null;
 		boolean isDir = false;
-		String fileType = null;
 		
-		// size of the returned content (if available)
+		// size and modification time of the returned content (if available)
 		long contentLength = 0;
+		long modified = 0;
 		
 		try {
-			File location = new File(serverRoot + hh.getRequestLocation());
-			fs = new FileInputStream(location);
-			contentLength = location.length();
-			
-			// TODO: if is directory, check to see if there is an index page before listing files.
-			
-			// get information about the file or flag that the file is a directory
-			if(location.isFile()) {
-				int loc = hh.getRequestLocation().lastIndexOf('.');
-				if(loc > -1) 
-					fileType = hh.getRequestLocation().substring(loc+1);
-				else
-					fileType = "";
-			}
-			else {
-				isDir = true;
+			location = new File(path);
+			if(!location.isDirectory()) {
+				if(sendFile) {
+					fc = FileChannel.open(location.toPath(), StandardOpenOption.READ);
+					contentLength = fc.size();
+				}
+				else {
+					fs = new FileInputStream(location);
+					contentLength = location.length();
+				}
+				modified = location.lastModified();
 			}
+			
+			// flag that the file is a directory
+			isDir = !location.isFile();
 		}
 		catch(Exception e) {
 			// otherwise send a 404
-			return new ByteArrayInputStream(get400(4).getBytes(Charset.forName("UTF-8")));
+			return get400(4, keepAlive);
 		}
 		
 		// handle the file or directory request
 		if(isDir) {
-			// TODO: directory listing
-			HTTPHeader resp = new HTTPHeader(200,"OK");
-			resp.setAttribute("Date", defaultSDF.format(new Date()) + " GMT");
-			resp.setAttribute("Content-Type", "text/html; charset=UTF-8;");
+			return directoryResponse(hh, location, keepAlive);
+		}
+		else {
 			
-			String message = "<div style='font-family: arial; font-size: 16px; padding: 25px; color: rgb(50,50,100);'>Directories have no listing yet...</div>";
-			String out = resp.toString() + message;
+			String etag = fileETag(contentLength, modified);
 			
-			if(fs != null) {
+			// small files go into the cache with the fields that do not change between requests
+			if(fc != null && cache != null && cache.accepts(contentLength)) {
+				ByteBuffer body = null;
 				try {
-					fs.close();
+					body = ContentCache.readBody(fc);
 				}
-				catch(Exception e) {
-					System.out.println("WARNING: Could not close file.");
+				catch(IOException e) {
+					AccessLog.message("WARNING: Could not cache " + path + ": " + e.getMessage(), null);
+				}
+				if(body != null) {
+					closeQuietly(fc);
+					byte[] fields = fileFields(new HeaderWriter(256), mt, body.remaining(), modified, etag, null).toBytes();
+					ContentCache.Entry ce = cache.put(path, location, contentLength, modified, etag, fields, body, null);
+					
+					ContentCache.Entry gz = useGzip ? gzipEntry(path, ce, mt) : null;
+					if(gz != null)
+						return fileResponse(hh, mt, gz.getLength(), gz.getModified(), gz.getETag(), gz, null, "gzip", keepAlive);
+					return fileResponse(hh, mt, ce.getLength(), modified, etag, ce, null, null, keepAlive);
 				}
 			}
 			
-			return new ByteArrayInputStream(out.getBytes(Charset.forName("UTF-8")));
-		}
-		else {
+			if(fc != null)
+				return fileResponse(hh, mt, contentLength, modified, etag, null, fc, null, keepAlive);
 			
-			if(fileType != null) {
-				// TODO: mime types from file extension	
+			// the old stream path does not do ranges
+			if(notModified(hh, etag, modified)) {
+				if(fs != null) {
+					try {
+						fs.close();
+					}
+					catch(IOException e) {
+						AccessLog.message("WARNING: Could not close file.", null);
+					}
+				}
+				return notModifiedResponse(etag, modified, mt, keepAlive);
 			}
 			
-			// add header to output and return stream
-			HTTPHeader resp = new HTTPHeader(200,"OK");
-			resp.setAttribute("Date", defaultSDF.format(new Date()) + " GMT");
-			resp.setAttribute("Content-Type", "text/html; charset=UTF-8;");
-			resp.setAttribute("Content-Length", ""+contentLength);
-			ByteArrayInputStream headerBytes = new ByteArrayInputStream(resp.toString().getBytes());
-			
-			// create a single stream from the header and the file
-			List<InputStream> streams = new LinkedList<InputStream>();
-			streams.add(headerBytes);
-			streams.add(fs);
-
-			// NOTE: SequenctInputStream does NOT appear to do unbroken reads between streams
-			return new SequenceInputStream(Collections.enumeration(streams));
+			HeaderWriter head = fileFields(HeaderWriter.start(200, keepAlive), mt, contentLength, modified, etag, null);
+			HTTPResponse out = new HTTPResponse(head.toBuffer());
+			out.addBody(fs);
+			return out;
+		}
+	}
+	
+	/**
+	 * Respond with a file that is either cached or open as a channel. Handles conditional
+	 * requests (304) and byte ranges (206/416) before falling back to the whole file.
+	 * @param hh Request header
+	 * @param mt Mime type of the file
+	 * @param length Size of the file
+	 * @param modified Modification time of the file
+	 * @param etag Entity tag of the file
+	 * @param ce Cache entry with the body, null if sending from the channel
+	 * @param fc Open file, null if sending from the cache. It is closed once sent.
+	 * @param encoding Content coding of the body, null for none
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	private static HTTPResponse fileResponse(HTTPHeader hh, MimeType mt, long length, long modified, String etag,
+			ContentCache.Entry ce, FileChannel fc, String encoding, boolean keepAlive) {
+		
+		if(notModified(hh, etag, modified)) {
+			if(fc != null)
+				closeQuietly(fc);
+			return notModifiedResponse(etag, modified, mt, keepAlive);
 		}
+		
+		ByteRanges ranges = null;
+		if(hh.getRequestMethod() == HTTPHeader.method.GET && ifRangeMatches(hh, etag, modified))
+			ranges = ByteRanges.parse(hh.getAttribute("Range"), length);
+		
+		// none of the ranges overlap the file
+		if(ranges != null && ranges.getCount() == 0) {
+			if(fc != null)
+				closeQuietly(fc);
+			HeaderWriter w = HeaderWriter.start(416, keepAlive);
+			w.raw(HeaderWriter.CONTENT_RANGE).text("bytes */").number(length).newLine();
+			return new HTTPResponse(w.field(HeaderWriter.CONTENT_LENGTH, 0).end().toBuffer());
+		}
+		
+		if(ranges != null)
+			return rangeResponse(ranges, mt, length, modified, etag, ce, fc, encoding, keepAlive);
+		
+		if(ce != null)
+			return cachedResponse(ce, keepAlive);
+		
+		// header and file are sent together, the file is read straight into the session's buffer
+		HeaderWriter head = fileFields(HeaderWriter.start(200, keepAlive), mt, length, modified, etag, encoding);
+		HTTPResponse out = new HTTPResponse(head.toBuffer());
+		out.addBody(fc, 0, length, true);
+		return out;
+	}
+	
+	/**
+	 * Build a 206 response. One range is sent as is, several are sent as multipart/byteranges.
+	 * File data is read from the channel at each range's offset, or sliced from the cache.
+	 * @return Response to send
+	 */
+	private static HTTPResponse rangeResponse(ByteRanges ranges, MimeType mt, long length, long modified, String etag,
+			ContentCache.Entry ce, FileChannel fc, String encoding, boolean keepAlive) {
+		
+		HeaderWriter head = HeaderWriter.start(206, keepAlive);
+		if(encoding != null)
+			head.field(HeaderWriter.CONTENT_ENCODING, encoding);
+		
+		if(ranges.getCount() == 1) {
+			head.raw(mt.contentType).field(HeaderWriter.CONTENT_LENGTH, ranges.getLength(0));
+			head.raw(HeaderWriter.CONTENT_RANGE).text("bytes ").number(ranges.getFirst(0)).text("-")
+					.number(ranges.getLast(0)).text("/").number(length).newLine();
+			validatorFields(head.raw(HeaderWriter.ACCEPT_RANGES_BYTES), mt, modified, etag).end();
+			HTTPResponse out = new HTTPResponse(head.toBuffer());
+			addRange(out, ranges, 0, ce, fc);
+			return out;
+		}
+		
+		String boundary = "ASYNCSERVER" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+		
+		// the part headers are built first so the total length is known
+		byte[][] partHeads = new byte[ranges.getCount()][];
+		long total = 0;
+		for(int i = 0; i < partHeads.length; i++) {
+			HeaderWriter part = new HeaderWriter(128);
+			part.newLine().text("--").text(boundary).newLine().raw(mt.contentType);
+			part.raw(HeaderWriter.CONTENT_RANGE).text("bytes ").number(ranges.getFirst(i)).text("-")
+					.number(ranges.getLast(i)).text("/").number(length).newLine().end();
+			partHeads[i] = part.toBytes();
+			total += partHeads[i].length + ranges.getLength(i);
+		}
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		total += end.length;
+		
+		head.field(HeaderWriter.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+				.field(HeaderWriter.CONTENT_LENGTH, total);
+		validatorFields(head.raw(HeaderWriter.ACCEPT_RANGES_BYTES), mt, modified, etag).end();
+		
+		HTTPResponse out = new HTTPResponse(head.toBuffer());
+		for(int i = 0; i < partHeads.length; i++) {
+			out.addBody(ByteBuffer.wrap(partHeads[i]));
+			addRange(out, ranges, i, ce, fc);
+		}
+		out.addBody(ByteBuffer.wrap(end));
+		return out;
+	}
+	
+	/**
+	 * Add one range of a file to a response body. The channel is closed after the last range.
+	 */
+	private static void addRange(HTTPResponse out, ByteRanges ranges, int i, ContentCache.Entry ce, FileChannel fc) {
+		if(ce != null) {
+			ByteBuffer b = ce.getBody();
+			b.position((int)ranges.getFirst(i));
+			b.limit((int)ranges.getLast(i) + 1);
+			out.addBody(b);
+		}
+		else {
+			out.addBody(fc, ranges.getFirst(i), ranges.getLength(i), i == ranges.getCount() - 1);
+		}
+	}
+	
+	/**
+	 * Determine if a range request applies to the current file. Without If-Range it always
+	 * does; with it, the validator must match exactly (strong comparison for tags).
+	 * @return True if the Range header should be used
+	 */
+	private static boolean ifRangeMatches(HTTPHeader hh, String etag, long modified) {
+		String ifRange = hh.getAttribute("If-Range");
+		if(ifRange == null)
+			return true;
+		
+		ifRange = ifRange.trim();
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag);
+		
+		long date = HTTPDate.parse(ifRange);
+		return date >= 0 && date / 1000 == modified / 1000;
+	}
+	
+	/**
+	 * Find the mime type of a file from its extension
+	 * @param path File path
+	 * @return Mime type, the default type if the extension is unknown
+	 */
+	private static MimeType mimeFor(String path) {
+		int dot = path.lastIndexOf('.');
+		if(dot < 0 || dot < path.lastIndexOf('/'))
+			return defaultMime;
+		MimeType mt = mimeTypes.get(path.substring(dot+1).toLowerCase());
+		return mt == null ? defaultMime : mt;
+	}
+	
+	/**
+	 * Write the header fields describing a file
+	 * @param w Header being written
+	 * @param encoding Content coding of the body, null for none
+	 * @return The writer, with the empty line written
+	 */
+	private static HeaderWriter fileFields(HeaderWriter w, MimeType mt, long length, long modified, String etag, String encoding) {
+		w.raw(mt.contentType).field(HeaderWriter.CONTENT_LENGTH, length).raw(HeaderWriter.ACCEPT_RANGES_BYTES);
+		if(encoding != null)
+			w.field(HeaderWriter.CONTENT_ENCODING, encoding);
+		return validatorFields(w, mt, modified, etag).end();
+	}
+	
+	/**
+	 * Get the gzip version of a cached file, creating it if needed. A precompressed
+	 * sidecar (path + ".gz") that is at least as new as the file is used if there is one,
+	 * otherwise the cached body is compressed.
+	 * @param path Resolved path of the file
+	 * @param ce Current cache entry of the uncompressed file
+	 * @param mt Mime type of the file
+	 * @return Cache entry with the gzip body, null if the file is too small to bother
+	 */
+	private static ContentCache.Entry gzipEntry(String path, ContentCache.Entry ce, MimeType mt) {
+		if(ce.getLength() < gzipMin)
+			return null;
+		
+		// an encoding made before the file last changed has a different base entry
+		ContentCache.Entry gz = cache.get(path + GZIP_SUFFIX);
+		if(gz != null && gz.getBase() == ce)
+			return gz;
+		
+		ByteBuffer body = null;
+		File source = ce.getFile();
+		
+		File side = new File(path + ".gz");
+		if(side.isFile() && side.lastModified() >= ce.getModified() && cache.accepts(side.length())) {
+			try {
+				FileChannel sfc = FileChannel.open(side.toPath(), StandardOpenOption.READ);
+				try {
+					body = ContentCache.readBody(sfc);
+					source = side;
+				}
+				finally {
+					closeQuietly(sfc);
+				}
+			}
+			catch(IOException e) {
+				AccessLog.message("WARNING: Could not read " + side.getPath() + ": " + e.getMessage(), null);
+			}
+		}
+		
+		if(body == null)
+			body = Compressor.gzip(ce.getBody(), gzipLevel);
+		
+		// a sidecar is checked for changes as well as the file, and its time is the one sent
+		// as Last-Modified and compared in conditional requests
+		long fileLength = (source == side) ? side.length() : ce.getFileLength();
+		long modified = (source == side) ? side.lastModified() : ce.getModified();
+		
+		// the compressed bytes are a different representation, so they get their own tag
+		String etag = gzipETag(fileETag(fileLength, modified));
+		byte[] fields = fileFields(new HeaderWriter(256), mt, body.remaining(), modified, etag, "gzip").toBytes();
+		return cache.put(path + GZIP_SUFFIX, source, fileLength, modified, etag, fields, body, ce);
+	}
+	
+	/**
+	 * Write the header fields that let a client revalidate a file
+	 * @param w Header being written
+	 * @return The writer, with Last-Modified, ETag and Cache-Control written
+	 */
+	private static HeaderWriter validatorFields(HeaderWriter w, MimeType mt, long modified, String etag) {
+		w.field(HeaderWriter.LAST_MODIFIED, HTTPDate.format(modified)).field(HeaderWriter.ETAG, etag);
+		if(mt.cacheControl != null)
+			w.raw(mt.cacheControl);
+		// both encodings of a compressible type are sent from the same URL
+		if(gzip && mt.compressible)
+			w.raw(HeaderWriter.VARY_ACCEPT_ENCODING);
+		return w;
+	}
+	
+	/**
+	 * Bodyless response telling the client its copy is still current
+	 * @return Response to send
+	 */
+	private static HTTPResponse notModifiedResponse(String etag, long modified, MimeType mt, boolean keepAlive) {
+		return new HTTPResponse(validatorFields(HeaderWriter.start(304, keepAlive), mt, modified, etag).end().toBuffer());
+	}
+	
+	/**
+	 * Determine if a conditional request can be answered with a 304. If-None-Match takes
+	 * precedence over If-Modified-Since when both are sent.
+	 * @param hh Request header
+	 * @param etag Current entity tag of the file
+	 * @param modified Current modification time of the file
+	 * @return True if the client's copy is current
+	 */
+	private static boolean notModified(HTTPHeader hh, String etag, long modified) {
+		if(hh.getRequestMethod() != HTTPHeader.method.GET && hh.getRequestMethod() != HTTPHeader.method.HEAD)
+			return false;
+		
+		String match = hh.getAttribute("If-None-Match");
+		if(match != null) {
+			// weak comparison, "*" matches any current file
+			String tag = opaqueTag(etag);
+			for(String t : match.split(",")) {
+				t = t.trim();
+				if(t.equals("*") || opaqueTag(t).equals(tag))
+					return true;
+			}
+			return false;
+		}
+		
+		long since = HTTPDate.parse(hh.getAttribute("If-Modified-Since"));
+		// HTTP dates only have whole seconds
+		return since >= 0 && modified / 1000 <= since / 1000;
+	}
+	
+	/**
+	 * Remove the weak indicator from an entity tag
+	 */
+	private static String opaqueTag(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+	
+	/**
+	 * Entity tag from the size and modification time of a file. It is the same whether the
+	 * file is sent from the cache or from disk, and is strong so If-Range can use it.
+	 */
+	private static String fileETag(long length, long modified) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(modified) + "\"";
+	}
+	
+	/**
+	 * Entity tag of the gzip encoding of a file
+	 * @param tag Tag of the file the compressed body was made from
+	 */
+	private static String gzipETag(String tag) {
+		return tag.substring(0, tag.length() - 1) + "-gz\"";
+	}
+	
+	/**
+	 * Build a response from a cached file. Only the status line, Date and Connection are
+	 * created per request, the rest of the header and the body are sent from the cache.
+	 * @param ce Cache entry
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	private static HTTPResponse cachedResponse(ContentCache.Entry ce, boolean keepAlive) {
+		HTTPResponse out = new HTTPResponse(HeaderWriter.start(200, keepAlive).toBuffer());
+		out.addHeader(ce.getHeader());
+		out.addBody(ce.getBody());
+		return out;
+	}
+	
+	/**
+	 * Build the metrics page, it is never cached by clients
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	private static HTTPResponse metricsResponse(boolean keepAlive) {
+		byte[] body = ServerMetrics.render().getBytes(StandardCharsets.UTF_8);
+		HeaderWriter w = HeaderWriter.start(200, keepAlive);
+		w.field(HeaderWriter.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+				.field(HeaderWriter.CONTENT_LENGTH, body.length).text("Cache-Control: no-store").newLine().end();
+		HTTPResponse out = new HTTPResponse(w.toBuffer());
+		out.addBody(ByteBuffer.wrap(body));
+		return out;
+	}
+	
+	/**
+	 * Respond with the index file of a directory, or with a listing of it if it has none.
+	 * The listing is JSON if the client accepts it and HTML otherwise.
+	 * @param hh Request header
+	 * @param dir The directory
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	private static HTTPResponse directoryResponse(HTTPHeader hh, File dir, boolean keepAlive) {
+		// links in the listing and in index pages are relative to the directory
+		String loc = hh.getRequestLocation();
+		int q = loc.indexOf('?');
+		String path = q < 0 ? loc : loc.substring(0, q);
+		if(!path.endsWith("/")) {
+			String query = q < 0 ? "" : loc.substring(q);
+			HeaderWriter w = HeaderWriter.start(301, keepAlive);
+			w.field(HeaderWriter.LOCATION, path + "/" + query).field(HeaderWriter.CONTENT_LENGTH, 0).end();
+			return new HTTPResponse(w.toBuffer());
+		}
+		
+		DirectoryListing.Listing l = directories.get(dir);
+		if(l == null)
+			return get400(4, keepAlive);
+		if(l.getIndex() != null)
+			return respondPath(hh, l.getIndex().getPath(), keepAlive);
+		if(!listing)
+			return get400(4, keepAlive);
+		
+		String accept = hh.getAttribute("Accept");
+		boolean json = accept != null && accept.contains("application/json");
+		String type = json ? "application/json; charset=UTF-8" : "text/html; charset=UTF-8";
+		
+		// scanned for this request only, send it as it is rendered
+		if(!l.isCached())
+			return streamResponse(hh, 200, type, l.render(json), keepAlive);
+		
+		byte[] body = l.getBody(json);
+		HeaderWriter w = HeaderWriter.start(200, keepAlive);
+		w.field(HeaderWriter.CONTENT_TYPE, type).field(HeaderWriter.CONTENT_LENGTH, body.length).end();
+		HTTPResponse out = new HTTPResponse(w.toBuffer());
+		out.addBody(ByteBuffer.wrap(body));
+		return out;
+	}
+	
+	/**
+	 * Respond with a body that is written as it is produced. HTTP/1.1 clients get it in
+	 * chunks and the connection can be reused; older clients get the bare body and the
+	 * connection is closed to mark its end.
+	 * @param hh Request header
+	 * @param code Status code
+	 * @param contentType Value of the Content-Type field
+	 * @param src Writes the body
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return Response to send
+	 */
+	public static HTTPResponse streamResponse(HTTPHeader hh, int code, String contentType, ChunkedOutput.Source src, boolean keepAlive) {
+		boolean chunked = "HTTP/1.1".equals(hh.getRequestHTTPVersion());
+		keepAlive = keepAlive && chunked;
+		HeaderWriter w = HeaderWriter.start(code, keepAlive).field(HeaderWriter.CONTENT_TYPE, contentType);
+		if(chunked)
+			w.raw(HeaderWriter.TRANSFER_ENCODING_CHUNKED);
+		HTTPResponse out = new HTTPResponse(w.end().toBuffer());
+		out.addBody(new ChunkedOutput(src, chunked));
+		out.setCloseAfter(!keepAlive);
+		return out;
+	}
+	
+	/**
+	 * Close a file without reporting errors
+	 * @param fc File to close
+	 */
+	private static void closeQuietly(FileChannel fc) {
+		try {
+			fc.close();
+		}
+		catch(IOException e) {
+			AccessLog.message("WARNING: Could not close file.", null);
+		}
+	}
+	
+	/**
+	 * Build a pre-rendered error page
+	 * @param code Status code
+	 * @return The page
+	 */
+	private static FixedResponse errorPage(int code) {
+		return new FixedResponse(code, "<div style='font-family: arial; font-size: 16px; padding: 25px; color: rgb(50,50,100);'>"
+				+ code + " " + HeaderWriter.reason(code) + "</div>");
+	}
+	
+	/**
+	 * Default 400+ error message. The connection is closed after sending.
+	 * @param code 400 + code is the error number. i.e. code = 4 equates to 404
+	 * @return Error response to send
+	 */
+	public static HTTPResponse get400(int code) {
+		return get400(code, false);
 	}
 	
 	/**
 	 * Default 400+ error message
 	 * @param code 400 + code is the error number. i.e. code = 4 equates to 404
+	 * @param keepAlive True if the connection will be kept open after this response
 	 * @return Error response to send
 	 */
-	public static String get400(int code) {
-		
-		String errorType = null;
-		int errorNum = 400+code;
+	public static HTTPResponse get400(int code, boolean keepAlive) {
 		
 		switch(code) {
 		
-			case 0:
-				errorType = "Bad Request";
-				break;
 			case 4:
-				errorType = "Not Found";
-				break;
+				return PAGE_404.respond(keepAlive);
+			case 13:
+				return PAGE_413.respond(keepAlive);
+			case 31:
+				return PAGE_431.respond(keepAlive);
 			default:
-				errorType = "Bad Request";
+				return PAGE_400.respond(keepAlive);
 		
 		}
+	}
+	
+	/**
+	 * Default 500+ error message. The connection is closed after sending.
+	 * @param code 500 + code is the error number. i.e. code = 3 equates to 503
+	 * @return Error response to send
+	 */
+	public static HTTPResponse get500(int code) {
 		
-		String message = "<div style='font-family: arial; font-size: 16px; padding: 25px; color: rgb(50,50,100);'>"+errorNum+" "+errorType+"</div>";
-		
-		HTTPHeader resp = new HTTPHeader(errorNum,errorType);
-		resp.setAttribute("Date", defaultSDF.format(new Date()) + " GMT");
-		resp.setAttribute("Content-Type", "text/html; charset=UTF-8;");
-		resp.setAttribute("Content-Length", ""+message.length());
-		
-		String out = resp.toString() + message;
+		switch(code) {
 		
-		return out;
+			case 3:
+				return PAGE_503.respond(false);
+			default:
+				return PAGE_500.respond(false);
 		
+		}
 	}
 
 }
@@ -0,0 +1,238 @@
+/*
+ * File: HeaderWriter.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Writes response headers straight into a ByteBuffer. Status lines and common field
+ *       names are encoded once as byte constants, and the Date value comes from a copy that
+ *       is formatted once per second, so building a header does no string concatenation.
+ *       A writer is used by one thread for one response.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+public class HeaderWriter {
+
+	// field names INCLUDING the ": "
+	public static final byte[] CONTENT_TYPE = bytes("Content-Type: ");
+	public static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+	public static final byte[] CONTENT_RANGE = bytes("Content-Range: ");
+	public static final byte[] CONTENT_ENCODING = bytes("Content-Encoding: ");
+	public static final byte[] ACCEPT_RANGES_BYTES = bytes("Accept-Ranges: bytes\r\n");
+	public static final byte[] LOCATION = bytes("Location: ");
+	public static final byte[] LAST_MODIFIED = bytes("Last-Modified: ");
+	public static final byte[] ETAG = bytes("ETag: ");
+	public static final byte[] TRANSFER_ENCODING_CHUNKED = bytes("Transfer-Encoding: chunked\r\n");
+	public static final byte[] VARY_ACCEPT_ENCODING = bytes("Vary: Accept-Encoding\r\n");
+
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] DATE = bytes("Date: ");
+	private static final byte[] KEEP_ALIVE = bytes("Connection: keep-alive\r\n");
+	private static final byte[] CLOSE = bytes("Connection: close\r\n");
+
+	// status lines by code, null for codes the server never sends
+	private static final byte[][] STATUS = new byte[600][];
+	static {
+		status(200, "OK");
+		status(206, "Partial Content");
+		status(301, "Moved Permanently");
+		status(304, "Not Modified");
+		status(400, "Bad Request");
+		status(404, "Not Found");
+		status(405, "Method Not Allowed");
+		status(413, "Content Too Large");
+		status(416, "Range Not Satisfiable");
+		status(431, "Request Header Fields Too Large");
+		status(500, "Internal Server Error");
+		status(503, "Service Unavailable");
+	}
+
+	private ByteBuffer buff;
+
+	/**
+	 * Create a writer
+	 * @param size Starting size of the buffer, it grows if a header does not fit
+	 */
+	public HeaderWriter(int size) {
+		buff = ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Create a writer with the status line, Date and Connection already written
+	 * @param code Status code
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return The writer
+	 */
+	public static HeaderWriter start(int code, boolean keepAlive) {
+		HeaderWriter w = new HeaderWriter(256);
+		return w.raw(statusLine(code)).date().connection(keepAlive);
+	}
+
+	/**
+	 * Get the encoded status line for a code
+	 * @param code Status code
+	 * @return Status line INCLUDING the line break
+	 */
+	public static byte[] statusLine(int code) {
+		byte[] line = (code >= 0 && code < STATUS.length) ? STATUS[code] : null;
+		return line != null ? line : bytes("HTTP/1.1 " + code + " Unknown\r\n");
+	}
+
+	/**
+	 * Get the reason phrase the server uses for a code
+	 * @param code Status code
+	 * @return Reason phrase
+	 */
+	public static String reason(int code) {
+		String line = new String(statusLine(code), StandardCharsets.ISO_8859_1);
+		return line.substring(13, line.length() - 2);
+	}
+
+	/**
+	 * Write the Date field with the current time
+	 * @return This writer
+	 */
+	public HeaderWriter date() {
+		return raw(DATE).raw(HTTPDate.currentBytes()).raw(CRLF);
+	}
+
+	/**
+	 * Write the Connection field
+	 * @param keepAlive True if the connection will be kept open after this response
+	 * @return This writer
+	 */
+	public HeaderWriter connection(boolean keepAlive) {
+		return raw(keepAlive ? KEEP_ALIVE : CLOSE);
+	}
+
+	/**
+	 * Write a field
+	 * @param name Encoded name from the constants above, INCLUDING the ": "
+	 * @param value Field value, only ISO-8859-1 characters are expected
+	 * @return This writer
+	 */
+	public HeaderWriter field(byte[] name, String value) {
+		raw(name);
+		ensure(value.length() + 2);
+		for(int i = 0; i < value.length(); i++)
+			buff.put((byte)value.charAt(i));
+		return raw(CRLF);
+	}
+
+	/**
+	 * Write a field with a number value
+	 * @param name Encoded name from the constants above, INCLUDING the ": "
+	 * @param value Field value
+	 * @return This writer
+	 */
+	public HeaderWriter field(byte[] name, long value) {
+		return raw(name).number(value).raw(CRLF);
+	}
+
+	/**
+	 * Write a number in decimal without creating a string
+	 * @param value Number to write
+	 * @return This writer
+	 */
+	public HeaderWriter number(long value) {
+		if(value < 0) {
+			ensure(1);
+			buff.put((byte)'-');
+			value = -value;
+		}
+
+		int digits = 1;
+		for(long v = value / 10; v > 0; v /= 10)
+			digits++;
+
+		ensure(digits);
+		int end = buff.position() + digits;
+		for(int i = end - 1; i >= buff.position(); i--) {
+			buff.put(i, (byte)('0' + value % 10));
+			value /= 10;
+		}
+		buff.position(end);
+		return this;
+	}
+
+	/**
+	 * Write text as is, only ISO-8859-1 characters are expected
+	 * @param s Text to write
+	 * @return This writer
+	 */
+	public HeaderWriter text(String s) {
+		ensure(s.length());
+		for(int i = 0; i < s.length(); i++)
+			buff.put((byte)s.charAt(i));
+		return this;
+	}
+
+	/**
+	 * Write already encoded bytes
+	 * @param b Bytes to write
+	 * @return This writer
+	 */
+	public HeaderWriter raw(byte[] b) {
+		ensure(b.length);
+		buff.put(b);
+		return this;
+	}
+
+	/**
+	 * End the current line
+	 * @return This writer
+	 */
+	public HeaderWriter newLine() {
+		return raw(CRLF);
+	}
+
+	/**
+	 * Write the empty line ending the header
+	 * @return This writer
+	 */
+	public HeaderWriter end() {
+		return raw(CRLF);
+	}
+
+	/**
+	 * Get the header for writing. The writer should not be used after this.
+	 * @return Buffer ready to be written
+	 */
+	public ByteBuffer toBuffer() {
+		buff.flip();
+		return buff;
+	}
+
+	/**
+	 * Get a copy of what has been written
+	 * @return Written bytes
+	 */
+	public byte[] toBytes() {
+		byte[] out = new byte[buff.position()];
+		ByteBuffer b = buff.duplicate();
+		b.flip();
+		b.get(out);
+		return out;
+	}
+
+	/**
+	 * Make sure there is room for more bytes, doubling the buffer if not
+	 */
+	private void ensure(int n) {
+		if(buff.remaining() >= n)
+			return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buff.capacity() * 2, buff.position() + n));
+		buff.flip();
+		bigger.put(buff);
+		buff = bigger;
+	}
+
+	private static void status(int code, String msg) {
+		STATUS[code] = bytes("HTTP/1.1 " + code + " " + msg + "\r\n");
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * File: LatencyHistogram.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Log-linear latency histogram in the style of HdrHistogram. Values below 64ns get a
+ *       bucket each, above that every power of two is split into 32 buckets, so any recorded
+ *       value is reported within about 3%. Counts are striped by thread so the channel group
+ *       threads rarely touch the same cache line; a snapshot adds the stripes together.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+
+public class LatencyHistogram {
+
+	private static final int LINEAR = 64; // values below this are exact
+	private static final int SUB_BITS = 5; // 32 buckets per power of two above that
+	private static final int MAX_EXP = 36; // values are capped at 2^36 ns, about 68 seconds
+	private static final int BUCKETS = LINEAR + (MAX_EXP - 6) * (1 << SUB_BITS);
+	private static final long MAX_VALUE = (1L << MAX_EXP) - 1;
+
+	private final AtomicLongArray[] stripes;
+	private final int mask;
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+		public long applyAsLong(long a, long b) {
+			return Math.max(a, b);
+		}
+	}, 0);
+
+	/**
+	 * Counts of a histogram at one point in time
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] c, long n, long s, long m) {
+			counts = c;
+			count = n;
+			sum = s;
+			max = m;
+		}
+
+		/**
+		 * @return Number of recorded values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return Total of all recorded values in ns
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return Largest recorded value in ns
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Get a percentile of the recorded values
+		 * @param q Quantile from 0 to 1, i.e. 0.99 for the 99th percentile
+		 * @return Highest value in the bucket holding the quantile in ns, 0 if nothing was recorded
+		 */
+		public long getValueAt(double q) {
+			if(count == 0)
+				return 0;
+			long target = Math.max(1, (long)Math.ceil(q * count));
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= target)
+					return Math.min(upperBound(i), max);
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * Create a histogram with enough stripes for the number of processors
+	 */
+	public LatencyHistogram() {
+		int n = 1;
+		while(n < Runtime.getRuntime().availableProcessors() * 2 && n < 16)
+			n <<= 1;
+		stripes = new AtomicLongArray[n];
+		for(int i = 0; i < n; i++)
+			stripes[i] = new AtomicLongArray(BUCKETS);
+		mask = n - 1;
+	}
+
+	/**
+	 * Record a value
+	 * @param nanos Latency in ns, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+		stripes[(int)Thread.currentThread().getId() & mask].incrementAndGet(bucket(v));
+		sum.add(v);
+		max.accumulate(v);
+	}
+
+	/**
+	 * Copy the current counts. Values recorded while copying may or may not be included.
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for(AtomicLongArray s : stripes) {
+			for(int i = 0; i < BUCKETS; i++) {
+				long c = s.get(i);
+				counts[i] += c;
+				total += c;
+			}
+		}
+		return new Snapshot(counts, total, sum.sum(), max.get());
+	}
+
+	/**
+	 * Find the bucket of a value
+	 */
+	private static int bucket(long v) {
+		if(v < LINEAR)
+			return (int)v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int)(v >>> (exp - SUB_BITS)); // top 6 bits, 32 to 63
+		return LINEAR + (exp - 6) * (1 << SUB_BITS) + sub - (1 << SUB_BITS);
+	}
+
+	/**
+	 * Highest value that falls in a bucket
+	 */
+	private static long upperBound(int bucket) {
+		if(bucket < LINEAR)
+			return bucket;
+		int k = bucket - LINEAR;
+		int exp = k / (1 << SUB_BITS) + 6;
+		long sub = k % (1 << SUB_BITS) + (1 << SUB_BITS);
+		return ((sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * File: RequestBody.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Body of a request as it is received. Small bodies are kept in memory; once a body
+ *       passes the memory limit everything is moved to a temp file and the rest is written
+ *       straight from the read buffer, so an upload of any size holds at most the limit in
+ *       memory. The temp file is deleted when the body is closed. Routes with a
+ *       Router.BodyHandler can take the body through their own Sink instead of this.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+
+public class RequestBody implements BodyDecoder.Sink {
+
+	private final int memoryLimit;
+	private byte[] mem; // body while it fits in memory
+	private long length;
+	private File file; // temp file once spilled, null before
+	private FileChannel out;
+
+	/**
+	 * Create an empty body
+	 * @param memoryLimit Bytes kept in memory before the body is moved to a temp file
+	 */
+	public RequestBody(int memoryLimit) {
+		this.memoryLimit = memoryLimit;
+		mem = new byte[Math.min(memoryLimit, 4096)];
+	}
+
+	/**
+	 * Append decoded body bytes
+	 * @param data Bytes from the position to the limit, the position is not moved
+	 */
+	public void write(ByteBuffer data) throws IOException {
+		int n = data.remaining();
+		if(out == null && length + n <= memoryLimit) {
+			if(length + n > mem.length) {
+				byte[] bigger = new byte[(int)Math.min(memoryLimit, Math.max(mem.length * 2, length + n))];
+				System.arraycopy(mem, 0, bigger, 0, (int)length);
+				mem = bigger;
+			}
+			data.duplicate().get(mem, (int)length, n);
+			length += n;
+			return;
+		}
+
+		if(out == null)
+			spill();
+		ByteBuffer d = data.duplicate();
+		while(d.hasRemaining())
+			out.write(d);
+		length += n;
+	}
+
+	/**
+	 * Move what is in memory to a new temp file
+	 */
+	private void spill() throws IOException {
+		file = File.createTempFile("asock-body-", ".tmp");
+		out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		ByteBuffer m = ByteBuffer.wrap(mem, 0, (int)length);
+		while(m.hasRemaining())
+			out.write(m);
+		mem = null;
+	}
+
+	/**
+	 * @return Bytes received
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return True if the body was moved to a temp file
+	 */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * @return Temp file holding the body, null if it is in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Read the body from the start
+	 * @return Stream over the whole body
+	 */
+	public InputStream getInputStream() throws IOException {
+		if(file == null)
+			return new ByteArrayInputStream(mem, 0, (int)length);
+		return Files.newInputStream(file.toPath());
+	}
+
+	/**
+	 * Drop the body and delete its temp file
+	 */
+	public void close() {
+		if(out != null) {
+			try {
+				out.close();
+			}
+			catch(IOException e) {
+				// deleted below anyway
+			}
+			out = null;
+		}
+		if(file != null) {
+			file.delete();
+			file = null;
+		}
+		mem = null;
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * File: RequestCycle.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: The part of serving a connection that is the same for every engine. It holds the
+ *       session settings, the read buffer and the parser, works out how a request body is
+ *       framed and decodes it into its sink, turns a request into an Exchange (or the error
+ *       response it gets instead), and records the phase times and access log line once the
+ *       response is sent. The sessions only move bytes; how they wait on the channel is up
+ *       to each engine.
+ */
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+
+public class RequestCycle {
+
+	// settings shared by all sessions
+	static int buffSize = 8192; // largest request header accepted
+	static int writeChunk = 65536; // size of file chunks read per write
+	private static long bodyMax = 10485760; // largest body accepted, larger ones get a 413
+	private static int bodyMemory = 65536; // bytes of a body kept in memory before it goes to a temp file
+	private static long bodyTimeout = 60000; // ms to receive a whole request body
+	private static int maxRequests = 100; // requests served before the connection is closed
+	private static long idleTimeout = 5000; // ms to wait for the next request on an open connection
+	private static long headerTimeout = 20000; // ms to receive a whole request header
+
+	static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final BufferPool pool;
+	private final ConnectionWatch timer;
+	private final HTTPRequestParser parser = new HTTPRequestParser();
+	private ByteBuffer buff; // read buffer, holds the whole request header
+	private ByteBuffer carry; // bytes read past a body that did not fit in buff yet, null if none
+	private int requestEnd; // offset in buff just past the current request and its body
+	private long readStart; // first byte of the request, 0 until it arrives
+
+	// request body
+	private BodyDecoder decoder; // null if the request has no body
+	private BodyDecoder.Sink body; // stored RequestBody or a handler's own sink
+	private Router.Match route; // route of the request whose body is being read
+	private boolean early; // body bytes came in with the header
+	private int bodyStatus; // status to answer with if the body could not be read, 0 if it was
+
+	/**
+	 * A request that has been taken from the read buffer, from the moment it is handed to its
+	 * handler until its response has been sent
+	 */
+	static class Exchange {
+		HTTPResponse response; // null until the handler answers
+		HTTPHeader header; // null if the request is answered without a handler
+		Router.Match route;
+		BodyDecoder.Sink body; // closed with the response
+		boolean keepAlive; // keep the connection open after this response
+		String method; // method and location, for the access log
+		String path;
+		long readStart;
+		long procStart;
+		long writeStart; // 0 until the response is first written
+		long sentBytes; // bytes of the response written so far
+
+		/**
+		 * Hand the request to its handler
+		 * @return Future of the response
+		 */
+		CompletableFuture<HTTPResponse> respond() {
+			return HTTPServer.respondAsync(header, route, keepAlive);
+		}
+
+		/**
+		 * Record the phase times and status of the response once it has been sent
+		 * @param client Address of the client, for the access log
+		 */
+		void record(SocketAddress client) {
+			long now = System.nanoTime();
+			long read = 0, total = now - writeStart;
+			ServerMetrics.WRITE.record(now - writeStart);
+			if(readStart != 0) {
+				read = procStart - readStart;
+				total = now - readStart;
+				ServerMetrics.READ.record(read);
+				ServerMetrics.PROC.record(writeStart - procStart);
+				ServerMetrics.TOTAL.record(total);
+			}
+			ServerMetrics.status(response.getStatus());
+			AccessLog.access(client, method, path, response.getStatus(), sentBytes,
+					read, writeStart - procStart, now - writeStart, total);
+		}
+
+		/**
+		 * Release what the response and the request body still hold
+		 */
+		void close() {
+			if(response != null)
+				response.close();
+			if(body != null) {
+				body.close();
+				body = null;
+			}
+		}
+	}
+
+	/**
+	 * Initialize the settings shared by all sessions
+	 * @param sc Server configuration
+	 */
+	public static void init(ServerConfig sc) {
+		maxRequests = sc.getIntSetting("server.keepalive.requests");
+		idleTimeout = sc.getIntSetting("server.keepalive.timeout");
+		writeChunk = sc.getIntSetting("server.transfer.chunk");
+		buffSize = sc.getIntSetting("server.header.max");
+		headerTimeout = sc.getIntSetting("server.timeout.header");
+		bodyMax = sc.getIntSetting("server.body.max");
+		bodyMemory = sc.getIntSetting("server.body.memory");
+		bodyTimeout = sc.getIntSetting("server.timeout.body");
+		ConnectionWatch.init(sc);
+	}
+
+	/**
+	 * Create the request state of a connection
+	 * @param p Pool to borrow buffers from
+	 * @param t Watch of the connection
+	 */
+	public RequestCycle(BufferPool p, ConnectionWatch t) {
+		pool = p;
+		timer = t;
+	}
+
+	/**
+	 * @return The parser of the current request
+	 */
+	public HTTPRequestParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * Get the read buffer, borrowing it on first use
+	 * @return Buffer the header is read into
+	 */
+	public ByteBuffer getBuffer() {
+		if(buff == null) {
+			buff = pool.acquire(buffSize);
+			buff.limit(buffSize);
+		}
+		return buff;
+	}
+
+	/**
+	 * @return True if part of the next request is already in the read buffer
+	 */
+	public boolean hasBuffered() {
+		return buff != null && buff.position() > 0;
+	}
+
+	/**
+	 * @return True if more is buffered behind the current request and its body
+	 */
+	public boolean hasMore() {
+		return requestEnd < buff.position() || carry != null;
+	}
+
+	/**
+	 * Start the timeout for the next request. Waiting on a reused connection is limited by
+	 * the idle timeout, a new connection has to send its first request within the header
+	 * timeout, and so does the rest of a request that is already partly here.
+	 * @param reused True if a request has been answered on this connection
+	 */
+	public void watchHeader(boolean reused) {
+		if(hasBuffered())
+			timer.watch(deadline(headerTimeout), true);
+		else if(reused)
+			timer.watch(deadline(idleTimeout), false);
+		else
+			timer.watch(deadline(headerTimeout), false);
+	}
+
+	/**
+	 * Count bytes read from the client
+	 * @param read Number of bytes
+	 * @param reused True if a request has been answered on this connection
+	 */
+	public void received(long read, boolean reused) {
+		ServerMetrics.bytesIn(read);
+		if(readStart == 0) {
+			readStart = System.nanoTime();
+			// the first byte of a request ends the idle wait on a reused connection, the
+			// minimum rate applies from here on
+			long until = timer.getDeadline();
+			if(reused)
+				until = deadline(headerTimeout);
+			timer.watch(until, true);
+		}
+		timer.progress(read);
+	}
+
+	/**
+	 * Time limit for a phase that starts now
+	 * @param timeout Length of the phase in ms, 0 for none
+	 * @return Deadline for the watch, 0 for none
+	 */
+	private static long deadline(long timeout) {
+		return timeout > 0 ? TimingWheel.now() + timeout : 0;
+	}
+
+	/**
+	 * Work out how the body of a parsed request is framed
+	 * @return True if there is a body to read, false if there is none or it is refused
+	 */
+	public boolean frame() {
+		bodyStatus = 0;
+		requestEnd = parser.getHeaderEnd();
+		decoder = BodyDecoder.forRequest(parser, bodyMax);
+		if(decoder == null || decoder.isTooLarge() || decoder.isError()) {
+			endBody();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Leave the framed body unread so the request can be parsed again later
+	 */
+	public void defer() {
+		decoder = null;
+		requestEnd = 0;
+	}
+
+	/**
+	 * Route the request and open the sink of its body, then decode the body bytes that came
+	 * in with the header (and those carried over from an earlier body)
+	 * @return True if the body is complete or failed
+	 */
+	public boolean openBody() {
+		route = HTTPServer.find(parser);
+		body = HTTPServer.openBody(route, parser, bodyMemory);
+		ByteBuffer rest = buff.duplicate();
+		rest.flip();
+		rest.position(requestEnd);
+		early = rest.hasRemaining() || carry != null;
+		boolean done = decode(rest);
+		requestEnd = rest.position();
+		if(!done && carry != null) {
+			done = decode(carry);
+			if(!carry.hasRemaining()) {
+				pool.release(carry);
+				carry = null;
+			}
+		}
+		if(done) {
+			endBody();
+			return true;
+		}
+
+		timer.watch(deadline(bodyTimeout), true);
+		return false;
+	}
+
+	/**
+	 * @return True if the client waits for 100 Continue before it sends the body
+	 */
+	public boolean expectsContinue() {
+		return !early && "HTTP/1.1".equals(parser.getVersion()) && parser.headerEquals(HTTPRequestParser.EXPECT, "100-continue");
+	}
+
+	/**
+	 * Decode body bytes read from the client. Once the body is complete, whatever follows it
+	 * in the buffer is kept for the next request.
+	 * @param in Raw bytes from the client, a buffer from the pool
+	 * @return True if the body is complete or failed
+	 */
+	public boolean decodeBody(ByteBuffer in) {
+		if(!decode(in))
+			return false;
+		endBody();
+		return true;
+	}
+
+	/**
+	 * Keep the bytes read past the body for the next request
+	 * @param in Buffer the body was decoded from
+	 * @return True if the buffer was kept, the caller must not release it
+	 */
+	public boolean keepRest(ByteBuffer in) {
+		if(bodyStatus != 0 || !in.hasRemaining())
+			return false;
+		carry = in;
+		return true;
+	}
+
+	/**
+	 * Decode body bytes into the request body
+	 * @param in Raw bytes from the client
+	 * @return True if the body is complete or failed
+	 */
+	private boolean decode(ByteBuffer in) {
+		try {
+			return decoder.decode(in, body);
+		}
+		catch(IOException e) {
+			AccessLog.message("ERROR: Could not store request body.", e);
+			bodyStatus = 500;
+			return true;
+		}
+	}
+
+	/**
+	 * The body has been read (or there is none, or it failed), work out the status if it failed
+	 */
+	private void endBody() {
+		if(decoder != null && bodyStatus == 0) {
+			if(decoder.isTooLarge())
+				bodyStatus = 413;
+			else if(decoder.isError())
+				bodyStatus = 400;
+		}
+	}
+
+	/**
+	 * Take the request that has been received. If it can go to a handler the exchange gets
+	 * its header, route and body, otherwise it gets the error response to send.
+	 * @param x Exchange to fill in
+	 * @param count Number of requests taken on this connection, including this one
+	 * @return The exchange
+	 */
+	public <T extends Exchange> T take(T x, int count) {
+		timer.unwatch();
+		x.readStart = readStart;
+		x.procStart = System.nanoTime();
+
+		if(parser.isDone() && bodyStatus != 0) {
+			HTTPHeader hh = new HTTPHeader(parser);
+			x.method = hh.getRequestMethod().name();
+			x.path = hh.getRequestLocation();
+			// the rest of the body is still on its way, the connection cannot be reused
+			closeBody();
+			x.response = bodyStatus == 500 ? HTTPServer.get500(0) : HTTPServer.get400(bodyStatus - 400);
+		}
+		else if(parser.isDone()) {
+			HTTPHeader hh = new HTTPHeader(parser);
+			// a request with a body was routed when the body was opened
+			x.route = body != null ? route : HTTPServer.find(parser);
+			route = null;
+			hh.setBody(body);
+			x.body = body;
+			body = null;
+			decoder = null;
+			x.header = hh;
+			x.method = hh.getRequestMethod().name();
+			x.path = hh.getRequestLocation();
+			x.keepAlive = hh.isKeepAlive() && count < maxRequests;
+		}
+		else if(buff.position() == 0) {
+			AccessLog.message("WARNING: Client appears to have opened a connection but made no request!", null);
+			x.response = HTTPServer.get400(0);
+		}
+		else if(!parser.isError() && !buff.hasRemaining()) {
+			// header did not fit in the read buffer
+			x.response = HTTPServer.get400(31);
+		}
+		else {
+			x.response = HTTPServer.get400(0);
+		}
+		return x;
+	}
+
+	/**
+	 * Drop the request that was taken from the read buffer, keeping whatever came after it,
+	 * and get ready to parse the next
+	 * @param arrived When the buffered bytes of the next request arrived
+	 */
+	public void next(long arrived) {
+		consume(requestEnd);
+		requestEnd = 0;
+		parser.reset();
+		bodyStatus = 0;
+		decoder = null;
+		readStart = buff.position() > 0 ? arrived : 0;
+	}
+
+	/**
+	 * Drop a request from the read buffer
+	 * @param end Offset just past the request
+	 */
+	private void consume(int end) {
+		if(end == 0)
+			return;
+		if(end < buff.position()) {
+			buff.limit(buff.position());
+			buff.position(end);
+			buff.compact();
+		}
+		else {
+			buff.clear();
+		}
+		buff.limit(buffSize);
+
+		if(carry != null) {
+			int n = Math.min(carry.remaining(), buff.remaining());
+			ByteBuffer c = carry.duplicate();
+			c.limit(c.position() + n);
+			buff.put(c);
+			carry.position(carry.position() + n);
+			if(!carry.hasRemaining()) {
+				pool.release(carry);
+				carry = null;
+			}
+		}
+	}
+
+	/**
+	 * Drop the body being read and its temp file
+	 */
+	public void closeBody() {
+		if(body != null) {
+			body.close();
+			body = null;
+		}
+		decoder = null;
+	}
+
+	/**
+	 * Drop the body being read and give back the bytes carried over for the next request.
+	 * The read buffer is given back separately, see releaseBuffer().
+	 */
+	public void close() {
+		pool.release(carry);
+		carry = null;
+		closeBody();
+	}
+
+	/**
+	 * Give the read buffer back to the pool
+	 */
+	public void releaseBuffer() {
+		pool.release(buff);
+		buff = null;
+	}
+
+	/**
+	 * Check if any of a set of buffers still has data to write
+	 * @param bs Buffers to check, may be null
+	 * @return True if there is data left
+	 */
+	static boolean hasRemaining(ByteBuffer[] bs) {
+		if(bs == null)
+			return false;
+		for(int i = 0; i < bs.length; i++) {
+			if(bs[i].hasRemaining())
+				return true;
+		}
+		return false;
+	}
+}
@@ -2,26 +2,87 @@
  * File: Responder.java
  * Author: Matt Jones
  * Date: 09/27/2013
- * Desc: Start and maintain all sessions
+ * Desc: Start and maintain all sessions. The number of open sessions is capped; once full a
+ *       new connection is either answered with a 503 and closed, or accepting stops until a
+ *       session closes (the kernel listen backlog holds connections meanwhile).
  */
 
 import java.io.IOException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Responder implements CompletionHandler<AsynchronousSocketChannel, Void>
 {
 	private AsynchronousServerSocketChannel listener;
-	//private static final int THREAD_COUNT = 10;
+	private BufferPool pool; // buffers shared by all sessions of this listener
+	
+	// admission control
+	private final int maxSessions; // 0 for no limit
+	private final boolean pauseWhenFull; // stop accepting instead of rejecting
+	private final AtomicInteger sessions = new AtomicInteger();
+	private AsynchronousSocketChannel waiting; // accepted while full in pause mode, guarded by this
+	
+	// accepting again after the process ran out of file descriptors or buffers
+	private static final long ACCEPT_RETRY_MS = 100;
+	private static Timer retry; // created on the first failed accept
+	
+	/**
+	 * Initialize the responder with an async server socket channel and no session limit.
+	 * @param s Server socket channel
+	 * @param p Pool sessions borrow their buffers from
+	 */
+	public Responder(AsynchronousServerSocketChannel s, BufferPool p)
+	{
+		this(s, p, 0, false);
+	}
 	
 	/**
 	 * Initialize the responder with an async server socket channel.
 	 * @param s Server socket channel
+	 * @param p Pool sessions borrow their buffers from
+	 * @param max Most sessions open at once, 0 for no limit
+	 * @param pause True to stop accepting while full, false to answer 503
 	 */
-	public Responder(AsynchronousServerSocketChannel s)
+	public Responder(AsynchronousServerSocketChannel s, BufferPool p, int max, boolean pause)
 	{
 		listener = s;
+		pool = p;
+		maxSessions = max;
+		pauseWhenFull = pause;
+	}
+	
+	/**
+	 * Create a responder using the server.connections settings
+	 * @param s Server socket channel
+	 * @param p Pool sessions borrow their buffers from
+	 * @param sc Server configuration
+	 * @return The responder
+	 */
+	public static Responder fromConfig(AsynchronousServerSocketChannel s, BufferPool p, ServerConfig sc)
+	{
+		return fromConfig(s, p, sc, 1);
+	}
+	
+	/**
+	 * Create the responder of one listener shard. The connection limit is split evenly
+	 * between the shards so they never share a counter.
+	 * @param s Server socket channel of the shard
+	 * @param p Pool sessions of the shard borrow their buffers from
+	 * @param sc Server configuration
+	 * @param shards Number of shards
+	 * @return The responder
+	 */
+	public static Responder fromConfig(AsynchronousServerSocketChannel s, BufferPool p, ServerConfig sc, int shards)
+	{
+		int max = sc.getIntSetting("server.connections.max");
+		if(max > 0)
+			max = Math.max(1, (max + shards - 1) / shards);
+		return new Responder(s, p, max, Admission.pauseWhenFull(sc));
 	}
 	
 	/**
@@ -29,23 +90,131 @@ public class Responder implements CompletionHandler<AsynchronousSocketChannel, V
 	 */
 	public void completed(AsynchronousSocketChannel c, Void att)
 	{
-		// make sure we start listening for another client
-		listener.accept(null,this);
+		ServerMetrics.accepted();
 		
-		try
+		if(!tryAcquire())
 		{
-			System.out.println("Client has connected: " + c.getRemoteAddress().toString());
+			if(!pauseWhenFull)
+			{
+				listener.accept(null,this);
+				Admission.reject(c);
+				return;
+			}
+			// hold the connection and stop accepting until a session closes
+			if(park(c))
+				return;
 		}
-		catch(IOException e)
+		
+		admit(c);
+	}
+	
+	/**
+	 * Accepting failed. The accept loop goes on unless the listener has been closed.
+	 */
+	public void failed(Throwable exc, Void att)
+	{
+		// the listener was closed, the server is stopping (AsynchronousCloseException is one of these)
+		if(exc instanceof ClosedChannelException)
+			return;
+		
+		AccessLog.message("ERROR: Could not accept a connection.", exc);
+		
+		// running out of file descriptors (EMFILE, ENFILE) or socket buffers is an
+		// IOException, retrying right away would only fail again until sessions close
+		if(exc instanceof IOException)
 		{
-			e.printStackTrace();
+			retryTimer().schedule(new TimerTask() {
+				public void run() {
+					accept();
+				}
+			}, ACCEPT_RETRY_MS);
+			return;
 		}
+		accept();
+	}
+	
+	/**
+	 * Wait for the next connection, unless the listener has been closed meanwhile
+	 */
+	private void accept()
+	{
+		if(listener.isOpen())
+			listener.accept(null,this);
+	}
+	
+	/**
+	 * Get the timer that re-arms accepting after a resource failure
+	 */
+	private static synchronized Timer retryTimer()
+	{
+		if(retry == null)
+			retry = new Timer("asock-accept-retry", true);
+		return retry;
+	}
+	
+	/**
+	 * Start a session for a connection that holds a permit and accept the next one
+	 * @param c Accepted connection
+	 */
+	private void admit(AsynchronousSocketChannel c)
+	{
+		// make sure we start listening for another client
+		listener.accept(null,this);
 		
-		ASockSession rm = new ASockSession(c);
+		ASockSession rm = new ASockSession(c, pool, this);
 		rm.beginRead(); // trigger the start of read sequence
 	}
 	
-	public void failed(Throwable exc, Void att)
+	/**
+	 * Take a session permit if one is free
+	 * @return True if the session may start
+	 */
+	private boolean tryAcquire()
 	{
+		if(maxSessions <= 0)
+		{
+			sessions.incrementAndGet();
+			return true;
+		}
+		while(true)
+		{
+			int n = sessions.get();
+			if(n >= maxSessions)
+				return false;
+			if(sessions.compareAndSet(n, n+1))
+				return true;
+		}
+	}
+	
+	/**
+	 * Hold a connection until a session closes. A permit freed since tryAcquire() failed is
+	 * taken here so the connection is not left waiting with nothing open to release it.
+	 * @param c Accepted connection
+	 * @return True if parked, false if a permit was taken and the caller should admit it
+	 */
+	private synchronized boolean park(AsynchronousSocketChannel c)
+	{
+		if(tryAcquire())
+			return false;
+		waiting = c;
+		return true;
+	}
+	
+	/**
+	 * Give back the permit of a session that has closed. A parked connection takes it over
+	 * and accepting resumes.
+	 */
+	public void release()
+	{
+		AsynchronousSocketChannel c;
+		synchronized(this)
+		{
+			c = waiting;
+			waiting = null;
+			if(c == null)
+				sessions.decrementAndGet();
+		}
+		if(c != null)
+			admit(c);
 	}
 }
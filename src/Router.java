@@ -0,0 +1,321 @@
+/*
+ * File: Router.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Maps request locations to handlers. Routes are stored in a trie with one node per
+ *       path segment, so finding the handler for a location walks its segments once no matter
+ *       how many routes there are. A segment of a route can be a fixed name, a parameter
+ *       (":id") that matches any one segment, or a trailing "*" that mounts the handler on
+ *       everything below that point. Fixed names win over parameters, and the deepest mount
+ *       is used when nothing more specific matches. Each node holds a handler per method.
+ *       Routes can be added while the server is running; lookups take no locks.
+ *       Handlers either return a future of their response (AsyncHandler), or return it
+ *       directly and are run on the blocking pool (Handler).
+ */
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+
+public class Router {
+
+	/**
+	 * Answers requests for a route
+	 */
+	public interface Handler {
+		/**
+		 * Build the response to a request. Called on the blocking pool, so it may block.
+		 * @param hh Request header, with the body if there was one
+		 * @param m Parameters and mount remainder of the matched route
+		 * @param keepAlive True if the connection will be kept open after this response
+		 * @return Response to send
+		 */
+		HTTPResponse handle(HTTPHeader hh, Match m, boolean keepAlive);
+	}
+
+	/**
+	 * Answers requests for a route without blocking
+	 */
+	public interface AsyncHandler {
+		/**
+		 * Start building the response to a request. Called on a completion handler thread,
+		 * so it must not block; slow work is handed to an executor or other async code and
+		 * the future completed when the response is ready.
+		 * @param hh Request header, with the body if there was one
+		 * @param m Parameters and mount remainder of the matched route
+		 * @param keepAlive True if the connection will be kept open after this response
+		 * @return Future of the response to send
+		 */
+		CompletableFuture<HTTPResponse> handle(HTTPHeader hh, Match m, boolean keepAlive);
+	}
+
+	/**
+	 * Non-blocking handler that takes the request body as it arrives instead of after it has
+	 * been stored in a RequestBody
+	 */
+	public interface BodyHandler extends AsyncHandler {
+		/**
+		 * Start receiving the body of a request. Called on the session's thread once the
+		 * header has been read, before any of the body; the sink is written to on that
+		 * thread too, so neither may block. handle() is called once the whole body has been
+		 * written, with no RequestBody attached.
+		 * @param hh Request header, only valid during this call
+		 * @param m Parameters and mount remainder of the matched route
+		 * @return Sink for the decoded body, null to have the body stored as usual
+		 */
+		BodyDecoder.Sink openBody(HTTPHeader hh, Match m);
+	}
+
+	private static final HTTPHeader.method[] METHODS = HTTPHeader.method.values();
+	private static final int ANY = METHODS.length; // handler slot for routes added without a method
+
+	/**
+	 * One path segment of the trie
+	 */
+	private static final class Node {
+		final ConcurrentHashMap<String,Node> children = new ConcurrentHashMap<String,Node>();
+		volatile Node param; // child matching any segment, null if none
+		volatile String paramName;
+		final AtomicReferenceArray<AsyncHandler> exact = new AtomicReferenceArray<AsyncHandler>(ANY + 1);
+		final AtomicReferenceArray<AsyncHandler> mount = new AtomicReferenceArray<AsyncHandler>(ANY + 1);
+		volatile boolean hasExact;
+		volatile boolean hasMount;
+	}
+
+	/**
+	 * Result of a lookup
+	 */
+	public static final class Match {
+		private final String[] names;
+		private final String[] values;
+		private final String rest;
+		private final AsyncHandler handler;
+		private final String allow;
+
+		Match(String[] n, String[] v, String r, AsyncHandler h, String a) {
+			names = n;
+			values = v;
+			rest = r;
+			handler = h;
+			allow = a;
+		}
+
+		/**
+		 * Get a parameter of the route
+		 * @param name Name of the parameter without the ':'
+		 * @return Value from the location, null if the route has no such parameter
+		 */
+		public String getParam(String name) {
+			for(int i = 0; i < names.length; i++) {
+				if(name.equals(names[i]))
+					return values[i];
+			}
+			return null;
+		}
+
+		/**
+		 * @return Part of the location below a mount, starting with '/' (or empty), without
+		 *         the query. Empty for routes that are not mounts.
+		 */
+		public String getRest() {
+			return rest;
+		}
+
+		/**
+		 * @return Handler for the method, null if the route does not take the method
+		 */
+		public AsyncHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * @return Methods the route takes, for the Allow field of a 405
+		 */
+		public String getAllow() {
+			return allow;
+		}
+	}
+
+	private final Node root = new Node();
+
+	/**
+	 * Add a route whose handler may block. It is run on the blocking pool.
+	 * @param m Method the route answers, null for all methods
+	 * @param pattern Location pattern, i.e. "/api/users/:id" or "/static/*"
+	 * @param h Handler for the route, it replaces any handler of the same pattern and method
+	 * @throws IllegalArgumentException If the pattern is malformed, or a parameter has a
+	 *         different name than another route's parameter at the same place
+	 */
+	public void add(HTTPHeader.method m, String pattern, Handler h) {
+		addAsync(m, pattern, onBlockingPool(h));
+	}
+
+	/**
+	 * Add a route with a non-blocking handler
+	 * @param m Method the route answers, null for all methods
+	 * @param pattern Location pattern, i.e. "/api/users/:id" or "/static/*"
+	 * @param h Handler for the route, it replaces any handler of the same pattern and method
+	 * @throws IllegalArgumentException If the pattern is malformed, or a parameter has a
+	 *         different name than another route's parameter at the same place
+	 */
+	public synchronized void addAsync(HTTPHeader.method m, String pattern, AsyncHandler h) {
+		if(!pattern.startsWith("/"))
+			throw new IllegalArgumentException("Route must start with /: " + pattern);
+
+		String[] segs = pattern.substring(1).split("/", -1);
+		boolean isMount = segs[segs.length - 1].equals("*");
+		int count = isMount ? segs.length - 1 : segs.length;
+		// "/" is the root itself
+		if(count == 1 && segs[0].isEmpty())
+			count = 0;
+
+		Node n = root;
+		for(int i = 0; i < count; i++) {
+			String s = segs[i];
+			if(s.equals("*"))
+				throw new IllegalArgumentException("* must be the last segment: " + pattern);
+			if(s.startsWith(":")) {
+				String name = s.substring(1);
+				if(n.param == null) {
+					Node p = new Node();
+					n.paramName = name;
+					n.param = p;
+				}
+				else if(!n.paramName.equals(name)) {
+					throw new IllegalArgumentException("Parameter :" + name + " of " + pattern + " is already named :" + n.paramName);
+				}
+				n = n.param;
+			}
+			else {
+				Node c = n.children.get(s);
+				if(c == null) {
+					c = new Node();
+					n.children.put(s, c);
+				}
+				n = c;
+			}
+		}
+
+		int slot = m == null ? ANY : m.ordinal();
+		if(isMount) {
+			n.mount.set(slot, h);
+			n.hasMount = true;
+		}
+		else {
+			n.exact.set(slot, h);
+			n.hasExact = true;
+		}
+	}
+
+	/**
+	 * Wrap a blocking handler so it runs on the blocking pool
+	 */
+	private static AsyncHandler onBlockingPool(final Handler h) {
+		return new AsyncHandler() {
+			public CompletableFuture<HTTPResponse> handle(final HTTPHeader hh, final Match m, final boolean keepAlive) {
+				return CompletableFuture.supplyAsync(new Supplier<HTTPResponse>() {
+					public HTTPResponse get() {
+						return h.handle(hh, m, keepAlive);
+					}
+				}, ServerExecutors.blocking());
+			}
+		};
+	}
+
+	/**
+	 * Find the route for a request
+	 * @param m Request method
+	 * @param location Request location, anything after '?' is ignored
+	 * @return The match, null if no route covers the location. A match without a handler
+	 *         means the route exists but not for this method.
+	 */
+	public Match find(HTTPHeader.method m, String location) {
+		int end = location.indexOf('?');
+		if(end < 0)
+			end = location.length();
+		if(end == 0 || location.charAt(0) != '/')
+			return null;
+
+		// at most one parameter per segment
+		int segs = 0;
+		for(int i = 0; i < end; i++) {
+			if(location.charAt(i) == '/')
+				segs++;
+		}
+		String[] names = new String[segs];
+		String[] values = new String[segs];
+
+		return search(root, m, location, end == 1 ? end : 0, end, names, values, 0);
+	}
+
+	/**
+	 * Match the rest of the location below a node
+	 * @param pos Offset of the '/' before the next segment, or end if there are none left
+	 * @param params Parameters filled in so far
+	 */
+	private Match search(Node n, HTTPHeader.method m, String loc, int pos, int end, String[] names, String[] values, int params) {
+		if(pos >= end) {
+			if(n.hasExact)
+				return match(n.exact, m, names, values, params, "");
+		}
+		else {
+			int next = loc.indexOf('/', pos + 1);
+			if(next < 0 || next > end)
+				next = end;
+			String seg = loc.substring(pos + 1, next);
+
+			Node c = n.children.get(seg);
+			if(c != null) {
+				Match r = search(c, m, loc, next, end, names, values, params);
+				if(r != null)
+					return r;
+			}
+
+			Node p = n.param;
+			if(p != null && !seg.isEmpty()) {
+				names[params] = n.paramName;
+				values[params] = seg;
+				Match r = search(p, m, loc, next, end, names, values, params + 1);
+				if(r != null)
+					return r;
+			}
+		}
+
+		if(n.hasMount)
+			return match(n.mount, m, names, values, params, loc.substring(Math.min(pos, end), end));
+		return null;
+	}
+
+	/**
+	 * Pick the handler for a method from a node
+	 */
+	private static Match match(AtomicReferenceArray<AsyncHandler> hs, HTTPHeader.method m, String[] names, String[] values, int params, String rest) {
+		AsyncHandler h = m == null ? null : hs.get(m.ordinal());
+		// HEAD is answered like GET unless it has its own handler
+		if(h == null && m == HTTPHeader.method.HEAD)
+			h = hs.get(HTTPHeader.method.GET.ordinal());
+		if(h == null)
+			h = hs.get(ANY);
+
+		String allow = null;
+		if(h == null) {
+			StringBuilder b = new StringBuilder();
+			for(int i = 0; i < METHODS.length; i++) {
+				if(hs.get(i) != null || (METHODS[i] == HTTPHeader.method.HEAD && hs.get(HTTPHeader.method.GET.ordinal()) != null)) {
+					if(b.length() > 0)
+						b.append(", ");
+					b.append(METHODS[i].name());
+				}
+			}
+			allow = b.toString();
+		}
+
+		String[] n = new String[params];
+		String[] v = new String[params];
+		System.arraycopy(names, 0, n, 0, params);
+		System.arraycopy(values, 0, v, 0, params);
+		return new Match(n, v, rest, h, allow);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * File: SelectorEngine.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Third engine, picked with server.engine=selector. A set of event loops, one per core
+ *       by default (server.loops), each with its own Selector. One thread accepts
+ *       connections and hands them to the loops in turn; from then on a connection is read,
+ *       parsed and written only on its loop. Requests go through the same parser, handlers
+ *       and responses as the other engines. Admission works as in BlockingEngine.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+
+
+public class SelectorEngine implements Runnable {
+
+	private final ServerSocketChannel listener;
+	private final BufferPool pool; // buffers shared by all sessions of this listener
+	private final EventLoop[] loops;
+	private int next; // loop that gets the next connection, only used by the accept thread
+	private final Semaphore permits; // free session slots, null for no limit
+	private final boolean pauseWhenFull; // stop accepting instead of rejecting
+
+	/**
+	 * Create the engine for a bound listener
+	 * @param s Listening channel
+	 * @param p Pool sessions borrow their buffers from
+	 * @param l Event loops to spread connections over
+	 * @param max Most sessions open at once, 0 for no limit
+	 * @param pause True to stop accepting while full, false to answer 503
+	 */
+	public SelectorEngine(ServerSocketChannel s, BufferPool p, EventLoop[] l, int max, boolean pause) {
+		listener = s;
+		pool = p;
+		loops = l;
+		permits = max > 0 ? new Semaphore(max) : null;
+		pauseWhenFull = pause;
+	}
+
+	/**
+	 * Bind the listener, start the event loops and the accept thread
+	 * @param sc Server configuration
+	 * @param address Address to listen on, port 0 picks a free port
+	 * @return The listening channel
+	 * @throws IOException If the listener or a selector cannot be opened
+	 */
+	public static ServerSocketChannel start(ServerConfig sc, InetSocketAddress address) throws IOException {
+		RequestCycle.init(sc);
+		ServerSocketChannel listener = ServerSocketChannel.open().bind(address, sc.getIntSetting("server.backlog"));
+
+		BufferPool pool = BufferPool.fromConfig(sc);
+		ServerMetrics.register(pool);
+
+		int count = sc.getIntSetting("server.loops");
+		if(count <= 0)
+			count = Runtime.getRuntime().availableProcessors();
+		EventLoop[] loops = new EventLoop[count];
+		for(int i = 0; i < count; i++)
+			loops[i] = new EventLoop("asock-loop-" + (i + 1));
+
+		SelectorEngine e = new SelectorEngine(listener, pool, loops, sc.getIntSetting("server.connections.max"),
+				Admission.pauseWhenFull(sc));
+
+		Thread t = new Thread(e, "asock-accept");
+		t.setDaemon(true);
+		t.start();
+		return listener;
+	}
+
+	/**
+	 * Accept connections until the listener is closed, then stop the loops
+	 */
+	public void run() {
+		while(listener.isOpen()) {
+			boolean held = false;
+			try {
+				// while full in pause mode the kernel listen backlog holds new connections
+				if(pauseWhenFull && permits != null) {
+					permits.acquire();
+					held = true;
+				}
+
+				SocketChannel c = listener.accept();
+				ServerMetrics.accepted();
+
+				if(!held && permits != null && !permits.tryAcquire()) {
+					Admission.reject(c);
+					continue;
+				}
+				held = false;
+				dispatch(c);
+			}
+			catch(ClosedChannelException e) {
+				break;
+			}
+			catch(InterruptedException e) {
+				break;
+			}
+			catch(IOException e) {
+				AccessLog.message("ERROR: Could not accept a connection.", e);
+			}
+			finally {
+				if(held)
+					permits.release();
+			}
+		}
+
+		for(int i = 0; i < loops.length; i++)
+			loops[i].close();
+	}
+
+	/**
+	 * Hand an admitted connection to the next loop
+	 * @param c Accepted connection holding a permit
+	 */
+	private void dispatch(SocketChannel c) {
+		try {
+			c.configureBlocking(false);
+		}
+		catch(IOException e) {
+			AccessLog.message("ERROR: Could not accept a connection.", e);
+			try {
+				c.close();
+			}
+			catch(IOException ex) {
+				// already closed
+			}
+			release();
+			return;
+		}
+
+		EventLoop l = loops[next];
+		next = (next + 1) % loops.length;
+		final SelectorSession s = new SelectorSession(c, l, pool, this);
+		l.execute(new Runnable() {
+			public void run() {
+				s.start();
+			}
+		});
+	}
+
+	/**
+	 * Give back the permit of a session that has closed
+	 */
+	public void release() {
+		if(permits != null)
+			permits.release();
+	}
+}
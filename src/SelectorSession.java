@@ -0,0 +1,470 @@
+/*
+ * File: SelectorSession.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: One connection of the selector engine. The session is a state machine run by the
+ *       event loop that owns it: each time the channel is ready it reads or writes as much as
+ *       it can without blocking and goes back to waiting. Handlers and file reads run on the
+ *       blocking pool as in ASockSession, and their results are posted back to the loop, so
+ *       the session itself is only ever touched by one thread.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+
+public class SelectorSession {
+
+	// mode information
+	public static enum Mode{READ, BODY, PROC, WRITE};
+	private Mode mode = Mode.READ;
+
+	private final SocketChannel ch;
+	private SelectionKey key; // registration with the loop's selector
+	private SocketAddress client; // for the access log
+	private final EventLoop loop; // owner of this session, everything below is only used on it
+	private final BufferPool pool;
+	private final SelectorEngine engine; // gets the session permit back on close
+	private final ConnectionWatch timer;
+	private final RequestCycle cycle; // read buffer, parser and body of the current request
+	private ByteBuffer writeBuff; // buffer file data is read into, only held while writing
+	private ByteBuffer[] writeBuffs; // buffers of the write in progress
+	private boolean fetching; // the blocking pool is filling writeBuff
+	private RequestCycle.Exchange current; // request being answered, null between requests
+	private ByteBuffer bodyBuff; // read buffer for the rest of the body, only held while reading it
+	private ByteBuffer cont; // 100 Continue still being sent, null if none
+
+	private int requestCount; // number of requests completed on this connection
+	private boolean closed;
+
+	/**
+	 * Create a session
+	 * @param c Accepted connection, in non-blocking mode
+	 * @param l Event loop that runs the session
+	 * @param p Pool to borrow buffers from
+	 * @param e Engine that admitted this session
+	 */
+	public SelectorSession(SocketChannel c, EventLoop l, BufferPool p, SelectorEngine e) {
+		ch = c;
+		loop = l;
+		pool = p;
+		engine = e;
+		// a timeout is handled on the loop like everything else
+		timer = new ConnectionWatch(new Closeable() {
+			public void close() {
+				loop.execute(new Runnable() {
+					public void run() {
+						SelectorSession.this.close();
+					}
+				});
+			}
+		});
+		cycle = new RequestCycle(p, timer);
+		try {
+			client = c.getRemoteAddress();
+		}
+		catch(IOException ex) {
+			client = null;
+		}
+	}
+
+	/**
+	 * Register with the loop and wait for the first request. Called on the loop.
+	 */
+	public void start() {
+		ServerMetrics.sessions(1);
+		try {
+			key = ch.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		}
+		catch(IOException e) {
+			failed(e);
+			return;
+		}
+		cycle.getBuffer();
+		cycle.watchHeader(false);
+	}
+
+	/**
+	 * The channel is ready for what the session is waiting on. Called on the loop.
+	 */
+	public void ready() {
+		try {
+			switch(mode) {
+				case READ:
+					continueRead();
+					break;
+				case BODY:
+					continueBody();
+					break;
+				case WRITE:
+					continueWrite();
+					break;
+				case PROC:
+					break;
+			}
+		}
+		catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * A read or write failed
+	 */
+	private void failed(Throwable t) {
+		// the channel was closed because the session timed out, that is not an error
+		if(!timer.isTimedOut())
+			AccessLog.message("ERROR: An error occured while performing " + mode.name(), t);
+		close();
+	}
+
+	/**
+	 * Read what has arrived of the header. The parser picks up where it left off, so the end
+	 * of the header is found even when it is split across reads.
+	 */
+	private void continueRead() throws IOException {
+		ByteBuffer buff = cycle.getBuffer();
+		int read = ch.read(buff);
+		if(read == 0)
+			return;
+		if(read < 0) {
+			// client closed a persistent connection between requests
+			if(requestCount > 0 && buff.position() == 0) {
+				close();
+				return;
+			}
+			handleProc();
+			return;
+		}
+		cycle.received(read, requestCount > 0);
+
+		// the body starts right after the header
+		if(cycle.getParser().parse(buff)) {
+			beginBody();
+			return;
+		}
+
+		// stop reading once the header is bad or too large for the buffer
+		if(cycle.getParser().isError() || !buff.hasRemaining())
+			handleProc();
+	}
+
+	/**
+	 * Start reading the body of a parsed request, if it has one and it is not all here yet
+	 */
+	private void beginBody() throws IOException {
+		if(!cycle.frame() || cycle.openBody()) {
+			handleProc();
+			return;
+		}
+
+		mode = Mode.BODY;
+		bodyBuff = pool.acquire(RequestCycle.writeChunk);
+
+		// a client waiting for 100 Continue has not sent any of the body yet
+		if(cycle.expectsContinue()) {
+			cont = ByteBuffer.wrap(RequestCycle.CONTINUE);
+			continueBody();
+		}
+	}
+
+	/**
+	 * Send the rest of a 100 Continue, then decode the body bytes that have arrived
+	 */
+	private void continueBody() throws IOException {
+		if(cont != null) {
+			ServerMetrics.bytesOut(ch.write(cont));
+			if(cont.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			cont = null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		int read = ch.read(bodyBuff);
+		if(read == 0)
+			return;
+		// the client gave up part way through the body, there is no one to answer
+		if(read < 0) {
+			close();
+			return;
+		}
+		cycle.received(read, requestCount > 0);
+
+		bodyBuff.flip();
+		if(cycle.decodeBody(bodyBuff)) {
+			// whatever follows the body is the next request
+			if(!cycle.keepRest(bodyBuff))
+				pool.release(bodyBuff);
+			bodyBuff = null;
+			handleProc();
+			return;
+		}
+		bodyBuff.clear();
+	}
+
+	/**
+	 * Process the request that has been received. The loop stops watching the channel until
+	 * the response is ready.
+	 */
+	private void handleProc() {
+		mode = Mode.PROC;
+		key.interestOps(0);
+		current = cycle.take(new RequestCycle.Exchange(), requestCount + 1);
+		if(current.response != null) {
+			beginWrite();
+			return;
+		}
+
+		// the response comes back to this loop from whichever thread finishes it
+		current.respond().whenComplete(new BiConsumer<HTTPResponse, Throwable>() {
+			public void accept(HTTPResponse r, Throwable t) {
+				final HTTPResponse res = r != null ? r : HTTPServer.get500(0);
+				if(loop.inLoop()) {
+					responded(res);
+					return;
+				}
+				loop.execute(new Runnable() {
+					public void run() {
+						responded(res);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * The handler has answered
+	 * @param r Response to send
+	 */
+	private void responded(HTTPResponse r) {
+		if(closed) {
+			r.close();
+			return;
+		}
+		current.response = r;
+		beginWrite();
+	}
+
+	/**
+	 * Start sending the response once it is ready
+	 */
+	private void beginWrite() {
+		if(current.response.isCloseAfter())
+			current.keepAlive = false;
+		current.writeStart = System.nanoTime();
+		timer.watch(0, true);
+		mode = Mode.WRITE;
+		try {
+			continueWrite();
+		}
+		catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Write until the socket is full or the response is done. Buffers from a partial write
+	 * are finished first, then the next set is pulled from the response. Pulling file data
+	 * may wait on the disk, so it is handed to the blocking pool instead of running here.
+	 */
+	private void continueWrite() throws IOException {
+		while(true) {
+			if(!RequestCycle.hasRemaining(writeBuffs)) {
+				if(current.response.usesScratch()) {
+					fetch();
+					return;
+				}
+				if(!nextWrite())
+					return;
+			}
+
+			long written = ch.write(writeBuffs);
+			ServerMetrics.bytesOut(written);
+			timer.progress(written);
+			current.sentBytes += written;
+
+			// socket buffer is full, wait until it drains
+			if(RequestCycle.hasRemaining(writeBuffs)) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Pull the next buffers of a response that has no file or stream data left
+	 * @return True if there is more to write, false if the response is done or failed
+	 */
+	private boolean nextWrite() {
+		try {
+			writeBuffs = current.response.nextWrite(null);
+		}
+		catch(IOException e) {
+			AccessLog.message("ERROR: Response read failed.", e);
+			writeBuffs = null;
+			close();
+			return false;
+		}
+		if(writeBuffs == null) {
+			handleDone();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next file or stream chunk into the scratch buffer on the blocking pool, then
+	 * go on writing on the loop
+	 */
+	private void fetch() {
+		if(writeBuff == null)
+			writeBuff = pool.acquire(RequestCycle.writeChunk);
+		key.interestOps(0);
+		fetching = true;
+		final HTTPResponse response = current.response;
+		Runnable r = new Runnable() {
+			public void run() {
+				ByteBuffer[] bs = null;
+				IOException err = null;
+				try {
+					bs = response.nextWrite(writeBuff);
+				}
+				catch(IOException e) {
+					err = e;
+				}
+				final ByteBuffer[] next = bs;
+				final IOException error = err;
+				loop.execute(new Runnable() {
+					public void run() {
+						fetched(next, error);
+					}
+				});
+			}
+		};
+		try {
+			ServerExecutors.blocking().execute(r);
+		}
+		catch(RejectedExecutionException e) {
+			// blocking pool is saturated, read the chunk here rather than fail the response
+			r.run();
+		}
+	}
+
+	/**
+	 * The blocking pool has read the next chunk
+	 * @param next Buffers to write, null once the response is done
+	 * @param error Read failure, null if none
+	 */
+	private void fetched(ByteBuffer[] next, IOException error) {
+		fetching = false;
+		if(closed) {
+			// the session timed out meanwhile, it left these for us
+			current.close();
+			current = null;
+			pool.release(writeBuff);
+			writeBuff = null;
+			return;
+		}
+		if(error != null) {
+			AccessLog.message("ERROR: Response read failed.", error);
+			close();
+			return;
+		}
+
+		writeBuffs = next;
+		if(writeBuffs == null) {
+			handleDone();
+			return;
+		}
+		key.interestOps(SelectionKey.OP_WRITE);
+		try {
+			continueWrite();
+		}
+		catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * The response has been sent, wait for the next request or close
+	 */
+	private void handleDone() {
+		current.record(client);
+		current.close();
+		boolean keepAlive = current.keepAlive;
+		current = null;
+		pool.release(writeBuff);
+		writeBuff = null;
+		writeBuffs = null;
+		requestCount++;
+
+		if(!keepAlive) {
+			close();
+			return;
+		}
+
+		// a pipelined request may already be here, behind the one that was answered
+		cycle.next(System.nanoTime());
+		mode = Mode.READ;
+		key.interestOps(SelectionKey.OP_READ);
+		cycle.watchHeader(true);
+		if(!cycle.hasBuffered())
+			return;
+
+		try {
+			HTTPRequestParser parser = cycle.getParser();
+			ByteBuffer buff = cycle.getBuffer();
+			if(parser.parse(buff))
+				beginBody();
+			else if(parser.isError() || !buff.hasRemaining())
+				handleProc();
+		}
+		catch(IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Close the connection and give the buffers back to the pool
+	 */
+	private void close() {
+		if(closed)
+			return;
+		closed = true;
+		timer.stop();
+		ServerMetrics.sessions(-1);
+
+		// a chunk being read on the blocking pool still uses the response and scratch buffer,
+		// fetched() gives them back when it is done
+		if(!fetching) {
+			if(current != null)
+				current.close();
+			current = null;
+			pool.release(writeBuff);
+			writeBuff = null;
+		}
+		cycle.close();
+		cycle.releaseBuffer();
+		pool.release(bodyBuff);
+		bodyBuff = null;
+
+		if(key != null)
+			key.cancel();
+		try {
+			ch.close();
+		}
+		catch(IOException e) {
+			// already closed
+		}
+
+		engine.release();
+	}
+}
@@ -10,6 +10,7 @@
 
 import java.io.File;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
 
 
@@ -24,6 +25,50 @@ public class ServerConfig {
 									{"server.root","/web"},
 									{"server.index","index.html"}
 	};
+	// optional settings; these fall back to the defaults below without a warning
+	public static final String[][] optionalSettings = {
+									{"server.keepalive.requests","100"},
+									{"server.keepalive.timeout","5000"},
+									{"server.sendfile","on"},
+									{"server.transfer.chunk","65536"},
+									{"server.header.max","8192"},
+									{"server.pool.buffers","1024"},
+									{"server.pool.cache","32"},
+									{"server.threads.model","fixed"},
+									{"server.threads.count","0"},
+									{"server.blocking.threads","16"},
+									{"server.blocking.queue","1024"},
+									{"server.cache.size","67108864"},
+									{"server.cache.file.max","1048576"},
+									{"server.cache.revalidate","1000"},
+									{"server.gzip","on"},
+									{"server.gzip.min","1024"},
+									{"server.gzip.level","6"},
+									{"server.metrics","/metrics"},
+									{"server.connections.max","10000"},
+									{"server.connections.full","reject"},
+									{"server.backlog","1024"},
+									{"server.timeout.header","20000"},
+									{"server.rate.min","512"},
+									{"server.rate.window","5000"},
+									{"server.listing","on"},
+									{"server.listing.cache","1024"},
+									{"server.timeout.body","60000"},
+									{"server.body.max","10485760"},
+									{"server.body.memory","65536"},
+									{"server.log.access","access.log"},
+									{"server.log.size","67108864"},
+									{"server.log.keep","5"},
+									{"server.log.buffer","65536"},
+									{"server.engine","async"},
+									{"server.loops","0"},
+									{"server.shards","1"},
+									{"server.pipeline.depth","16"},
+									{"mime.default","application/octet-stream"},
+									{"cache.control.images","public, max-age=86400"},
+									{"cache.control.text","public, max-age=300"},
+									{"cache.control.application","public, max-age=300"}
+	};
 	// some common mime types to load in
 	public static final String[][] mimeTypes = {
 									{"mime.images.bmp","image/bmp"},
@@ -127,6 +172,7 @@ public class ServerConfig {
 			
 			// if no config was found, use default settings
 			defaultConfig(null);
+			optionalConfig();
 			
 			return;
 		}
@@ -153,6 +199,8 @@ public class ServerConfig {
 				System.out.println("WARNING: " + requiredSettings[i][0] + " not set. Using default of " + requiredSettings[i][1]);
 			}
 		}
+		
+		optionalConfig();
 	}
 	
 	/**
@@ -166,6 +214,20 @@ public class ServerConfig {
 		}
 	}
 	
+	/**
+	 * Fill in any optional settings and mime types that were not set in the file
+	 */
+	private void optionalConfig() {
+		for(int i = 0; i < optionalSettings.length; i++) {
+			if(getSetting(optionalSettings[i][0]) == null)
+				insert(optionalSettings[i][0],optionalSettings[i][1]);
+		}
+		for(int i = 0; i < mimeTypes.length; i++) {
+			if(getSetting(mimeTypes[i][0]) == null)
+				insert(mimeTypes[i][0],mimeTypes[i][1]);
+		}
+	}
+	
 	/**
 	 * Insert a node into the settings tree
 	 * @param name Name of setting
@@ -211,4 +273,77 @@ public class ServerConfig {
 		return null;
 	}
 	
+	/**
+	 * Get the names of the settings directly below a node of the tree
+	 * i.e. "mime" gives the mime categories and "mime.text" the text extensions
+	 * @param name The name of the parent setting
+	 * @return Names of the children, empty if there are none
+	 */
+	public List<String> getChildren(String name) {
+		List<String> out = new LinkedList<String>();
+		if(name == null)
+			return out;
+		
+		String[] nameSplit = name.split("\\.");
+		ConfNode temp = root;
+		for(int i = 0; i < nameSplit.length && temp != null; i++)
+			temp = temp.getChild(nameSplit[i]);
+		
+		if(temp != null && temp.children != null) {
+			for(ConfNode c : temp.children)
+				out.add(c.name);
+		}
+		return out;
+	}
+	
+	/**
+	 * Get a setting from the tree as an integer. If the value is missing or cannot
+	 * be parsed the hard-coded default for that setting is used instead.
+	 * @param name The name of the setting
+	 * @return Value of the setting, -1 if there is no usable value or default
+	 */
+	public int getIntSetting(String name) {
+		String value = getSetting(name);
+		try {
+			return Integer.parseInt(value);
+		}
+		catch(NumberFormatException e) {
+			String def = getDefault(name);
+			System.out.println("WARNING: " + name + " is not a number (" + value + "). Using default of " + def);
+			if(def == null)
+				return -1;
+			return Integer.parseInt(def);
+		}
+	}
+	
+	/**
+	 * Get a setting from the tree as a flag. "on", "true", "yes" and "1" are true.
+	 * @param name The name of the setting
+	 * @return Value of the setting, false if it is not set
+	 */
+	public boolean getBoolSetting(String name) {
+		String value = getSetting(name);
+		if(value == null)
+			return false;
+		return value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true")
+				|| value.equalsIgnoreCase("yes") || value.equals("1");
+	}
+	
+	/**
+	 * Find the hard-coded default for a setting
+	 * @param name The name of the setting
+	 * @return The default value, null if there is none
+	 */
+	private String getDefault(String name) {
+		for(int i = 0; i < requiredSettings.length; i++) {
+			if(requiredSettings[i][0].equals(name))
+				return requiredSettings[i][1];
+		}
+		for(int i = 0; i < optionalSettings.length; i++) {
+			if(optionalSettings[i][0].equals(name))
+				return optionalSettings[i][1];
+		}
+		return null;
+	}
+	
 }
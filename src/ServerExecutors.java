@@ -0,0 +1,152 @@
+/*
+ * File: ServerExecutors.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Thread pools used by the server. The channel group runs the accept/read/write
+ *       completion handlers and is one of a fixed pool, a cached pool or a work-stealing
+ *       ForkJoinPool (server.threads.model). Anything that may block on the disk runs on a
+ *       separate bounded pool so the completion handlers never wait on it. The virtual
+ *       thread engine starts a thread per connection instead of using a channel group.
+ */
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class ServerExecutors {
+
+	private static ThreadPoolExecutor blocking;
+	private static volatile boolean virtual; // connection threads are virtual threads
+
+	/**
+	 * Thread factory giving threads a readable name
+	 */
+	private static class NamedFactory implements ThreadFactory {
+		private final String prefix;
+		private final long stackSize; // 0 for the default
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedFactory(String p) {
+			this(p, 0);
+		}
+		NamedFactory(String p, long stack) {
+			prefix = p;
+			stackSize = stack;
+		}
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(null, r, prefix + "-" + count.incrementAndGet(), stackSize);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Create the shared pool for blocking work
+	 * @param sc Server configuration
+	 */
+	public static void init(ServerConfig sc) {
+		int threads = sc.getIntSetting("server.blocking.threads");
+		int queue = sc.getIntSetting("server.blocking.queue");
+
+		if(blocking != null)
+			blocking.shutdown();
+
+		// bounded queue, a full queue rejects the task instead of growing without limit
+		blocking = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new NamedFactory("asock-blocking"),
+				new ThreadPoolExecutor.AbortPolicy());
+		blocking.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get the pool for work that may block (file opens, stats and reads). Tasks are rejected
+	 * with a RejectedExecutionException when the queue is full.
+	 * @return Blocking work executor
+	 */
+	public static ExecutorService blocking() {
+		return blocking;
+	}
+
+	/**
+	 * Get a factory for threads that serve one connection each. These are virtual threads
+	 * when the JVM has them (Java 21 and up); they are looked up by reflection so the server
+	 * still builds and runs on older JVMs, which get platform threads with small stacks.
+	 * @return Connection thread factory
+	 */
+	public static ThreadFactory connectionThreads() {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+			b = builder.getMethod("name", String.class, long.class).invoke(b, "asock-vt-", 1L);
+			virtual = true;
+			return (ThreadFactory)builder.getMethod("factory").invoke(b);
+		}
+		catch(Exception e) {
+			// not there before Java 21, or still a preview feature
+			System.out.println("WARNING: Virtual threads are not available. Using platform threads.");
+			virtual = false;
+			return new NamedFactory("asock-conn", 256 * 1024);
+		}
+	}
+
+	/**
+	 * @return True if connectionThreads() gave virtual threads
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Open a channel group for the completion handlers using server.threads.model
+	 * @param sc Server configuration
+	 * @return The channel group
+	 * @throws IOException If the group cannot be created
+	 */
+	public static AsynchronousChannelGroup openGroup(ServerConfig sc) throws IOException {
+		int threads = sc.getIntSetting("server.threads.count");
+		if(threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		return openGroup(sc, threads);
+	}
+
+	/**
+	 * Open a channel group for the completion handlers using server.threads.model
+	 * @param sc Server configuration
+	 * @param threads Number of completion handler threads (initial threads for cached)
+	 * @return The channel group
+	 * @throws IOException If the group cannot be created
+	 */
+	public static AsynchronousChannelGroup openGroup(ServerConfig sc, int threads) throws IOException {
+		String model = sc.getSetting("server.threads.model");
+
+		if(model.equalsIgnoreCase("cached")) {
+			ExecutorService pool = Executors.newCachedThreadPool(new NamedFactory("asock-io"));
+			return AsynchronousChannelGroup.withCachedThreadPool(pool, threads);
+		}
+		else if(model.equalsIgnoreCase("forkjoin")) {
+			// FIFO mode suits event style tasks that are never joined
+			ForkJoinPool pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					t.setName("asock-io-" + count.incrementAndGet());
+					return t;
+				}
+			}, null, true);
+			return AsynchronousChannelGroup.withThreadPool(pool);
+		}
+
+		if(!model.equalsIgnoreCase("fixed"))
+			System.out.println("WARNING: Unknown server.threads.model " + model + ". Using fixed.");
+		return AsynchronousChannelGroup.withFixedThreadPool(threads, new NamedFactory("asock-io"));
+	}
+}
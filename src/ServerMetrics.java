@@ -0,0 +1,191 @@
+/*
+ * File: ServerMetrics.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Counters and latency histograms for the whole server. Sessions record into these as
+ *       they move through their modes; everything is lock-free so recording stays cheap on
+ *       the channel group threads. The current values are rendered in the plain text
+ *       exposition format that Prometheus and similar scrapers read.
+ */
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class ServerMetrics {
+
+	// request phases, these follow ASockSession.Mode
+	public static final LatencyHistogram READ = new LatencyHistogram(); // first byte to complete header
+	public static final LatencyHistogram PROC = new LatencyHistogram(); // header to response ready
+	public static final LatencyHistogram WRITE = new LatencyHistogram(); // first write to last byte sent
+	public static final LatencyHistogram TOTAL = new LatencyHistogram(); // first byte to last byte sent
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder accepted = new LongAdder();
+	private static final LongAdder rejected = new LongAdder();
+	private static final LongAdder timedOut = new LongAdder();
+	private static final LongAdder active = new LongAdder();
+	private static final AtomicLongArray statusCodes = new AtomicLongArray(600);
+	private static final long started = System.currentTimeMillis();
+
+	// buffer pools of all listeners
+	private static final List<BufferPool> pools = new CopyOnWriteArrayList<BufferPool>();
+
+	/**
+	 * Include a buffer pool in the metrics
+	 * @param p Pool used by a listener
+	 */
+	public static void register(BufferPool p) {
+		pools.add(p);
+	}
+
+	/**
+	 * Count an accepted connection
+	 */
+	public static void accepted() {
+		accepted.increment();
+	}
+
+	/**
+	 * Count a connection turned away with a 503 because the server is full
+	 */
+	public static void rejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * Count a session closed for being too slow or idle too long
+	 */
+	public static void timedOut() {
+		timedOut.increment();
+	}
+
+	/**
+	 * Count a session opening (1) or closing (-1)
+	 * @param delta Change in open sessions
+	 */
+	public static void sessions(int delta) {
+		active.add(delta);
+	}
+
+	/**
+	 * @param n Bytes read from a client
+	 */
+	public static void bytesIn(long n) {
+		bytesIn.add(n);
+	}
+
+	/**
+	 * @param n Bytes written to a client
+	 */
+	public static void bytesOut(long n) {
+		bytesOut.add(n);
+	}
+
+	/**
+	 * Count a response that was sent
+	 * @param code Status code, 0 if unknown
+	 */
+	public static void status(int code) {
+		if(code > 0 && code < statusCodes.length())
+			statusCodes.incrementAndGet(code);
+	}
+
+	/**
+	 * Render every metric in the plain text exposition format
+	 * @return Metrics text
+	 */
+	public static String render() {
+		StringBuilder out = new StringBuilder(4096);
+
+		out.append("# HELP asock_request_duration_seconds Time spent in each phase of a request.\n");
+		out.append("# TYPE asock_request_duration_seconds summary\n");
+		String[] phases = {"read", "proc", "write", "total"};
+		LatencyHistogram.Snapshot[] snaps = {READ.snapshot(), PROC.snapshot(), WRITE.snapshot(), TOTAL.snapshot()};
+		for(int i = 0; i < phases.length; i++)
+			summary(out, phases[i], snaps[i]);
+		
+		out.append("# HELP asock_request_duration_max_seconds Longest time spent in each phase of a request.\n");
+		out.append("# TYPE asock_request_duration_max_seconds gauge\n");
+		for(int i = 0; i < phases.length; i++)
+			out.append("asock_request_duration_max_seconds{phase=\"").append(phases[i]).append("\"} ").append(seconds(snaps[i].getMax())).append('\n');
+
+		counter(out, "asock_connections_accepted_total", "Connections accepted.", accepted.sum());
+		counter(out, "asock_connections_rejected_total", "Connections answered with 503 because the server was full.", rejected.sum());
+		counter(out, "asock_connections_timed_out_total", "Sessions closed by a timeout or for being below the minimum rate.", timedOut.sum());
+		gauge(out, "asock_connections_active", "Sessions currently open.", active.sum());
+		counter(out, "asock_received_bytes_total", "Bytes read from clients.", bytesIn.sum());
+		counter(out, "asock_sent_bytes_total", "Bytes written to clients.", bytesOut.sum());
+
+		out.append("# HELP asock_responses_total Responses sent by status code.\n");
+		out.append("# TYPE asock_responses_total counter\n");
+		for(int i = 0; i < statusCodes.length(); i++) {
+			long c = statusCodes.get(i);
+			if(c > 0)
+				out.append("asock_responses_total{code=\"").append(i).append("\"} ").append(c).append('\n');
+		}
+
+		long hits = 0, misses = 0, outstanding = 0;
+		for(BufferPool p : pools) {
+			hits += p.getHits();
+			misses += p.getMisses();
+			outstanding += p.getOutstanding();
+		}
+		counter(out, "asock_buffer_pool_hits_total", "Buffers served from the pool.", hits);
+		counter(out, "asock_buffer_pool_misses_total", "Buffers newly allocated.", misses);
+		gauge(out, "asock_buffer_pool_outstanding", "Buffers currently borrowed.", outstanding);
+
+		ContentCache cache = HTTPServer.getCache();
+		if(cache != null) {
+			counter(out, "asock_cache_hits_total", "Requests answered from the content cache.", cache.getHits());
+			counter(out, "asock_cache_misses_total", "Content cache lookups that missed.", cache.getMisses());
+			counter(out, "asock_cache_evictions_total", "Files evicted to stay under the cache size.", cache.getEvictions());
+			counter(out, "asock_cache_invalidations_total", "Cached files dropped because they changed.", cache.getInvalidations());
+			gauge(out, "asock_cache_bytes", "Bytes held by the content cache.", cache.getSize());
+			gauge(out, "asock_cache_files", "Files held by the content cache.", cache.getCount());
+		}
+
+		DirectoryListing dirs = HTTPServer.getDirectories();
+		if(dirs != null) {
+			counter(out, "asock_listing_hits_total", "Directory requests answered from a cached scan.", dirs.getHits());
+			counter(out, "asock_listing_misses_total", "Directory requests that scanned the directory.", dirs.getMisses());
+			counter(out, "asock_listing_invalidations_total", "Cached directories dropped because they changed.", dirs.getInvalidations());
+			gauge(out, "asock_listing_directories", "Directories held in the listing cache.", dirs.getCount());
+		}
+		
+		counter(out, "asock_log_dropped_total", "Log entries dropped because the log writer was behind.", AccessLog.getDropped());
+		gauge(out, "asock_uptime_seconds", "Seconds since the server started.", (System.currentTimeMillis() - started) / 1000);
+		return out.toString();
+	}
+
+	private static void summary(StringBuilder out, String phase, LatencyHistogram.Snapshot s) {
+		for(double q : QUANTILES) {
+			out.append("asock_request_duration_seconds{phase=\"").append(phase).append("\",quantile=\"").append(q)
+					.append("\"} ").append(seconds(s.getValueAt(q))).append('\n');
+		}
+		out.append("asock_request_duration_seconds_sum{phase=\"").append(phase).append("\"} ").append(seconds(s.getSum())).append('\n');
+		out.append("asock_request_duration_seconds_count{phase=\"").append(phase).append("\"} ").append(s.getCount()).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.US, "%.9f", nanos / 1e9);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * File: ShardedListener.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Listening channels of all shards bound to one port with SO_REUSEPORT, handled as one
+ *       channel. The kernel spreads new connections over the shards; this only reports the
+ *       shared address and closes them all together.
+ */
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.NetworkChannel;
+import java.util.Set;
+
+
+public class ShardedListener implements NetworkChannel {
+
+	private final NetworkChannel[] shards;
+
+	/**
+	 * Group bound listeners
+	 * @param s Listeners of the shards, all bound to the same address
+	 */
+	public ShardedListener(NetworkChannel[] s) {
+		shards = s;
+	}
+
+	/**
+	 * @return Number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * The shards are bound when they are created
+	 * @throws AlreadyBoundException Always
+	 */
+	public NetworkChannel bind(SocketAddress local) {
+		throw new AlreadyBoundException();
+	}
+
+	public SocketAddress getLocalAddress() throws IOException {
+		return shards[0].getLocalAddress();
+	}
+
+	/**
+	 * Set an option on every shard
+	 */
+	public <T> NetworkChannel setOption(SocketOption<T> name, T value) throws IOException {
+		for(int i = 0; i < shards.length; i++)
+			shards[i].setOption(name, value);
+		return this;
+	}
+
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		return shards[0].getOption(name);
+	}
+
+	public Set<SocketOption<?>> supportedOptions() {
+		return shards[0].supportedOptions();
+	}
+
+	/**
+	 * @return True while any shard is still open
+	 */
+	public boolean isOpen() {
+		for(int i = 0; i < shards.length; i++) {
+			if(shards[i].isOpen())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Close every shard
+	 * @throws IOException The first failure, after trying all shards
+	 */
+	public void close() throws IOException {
+		IOException first = null;
+		for(int i = 0; i < shards.length; i++) {
+			try {
+				shards[i].close();
+			}
+			catch(IOException e) {
+				if(first == null)
+					first = e;
+			}
+		}
+		if(first != null)
+			throw first;
+	}
+}
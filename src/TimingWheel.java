@@ -0,0 +1,139 @@
+/*
+ * File: TimingWheel.java
+ * Author: agent
+ * Date: 10/18/2026
+ * Desc: Hashed timing wheel for connection timeouts. Checks are put in the slot of the tick
+ *       they are due on, and one thread walks the slots, so scheduling is O(1) no matter how
+ *       many connections are open and there is no timer per connection. Times are monotonic
+ *       milliseconds from now(). Checks are run up to one tick late.
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+public class TimingWheel implements Runnable {
+
+	/**
+	 * Something with a deadline
+	 */
+	public interface Timeout {
+		/**
+		 * Called by the wheel thread once the scheduled time has passed. Must not block.
+		 * @param now Current time from now()
+		 * @return Time of the next check, 0 if no further checks are needed
+		 */
+		long check(long now);
+	}
+
+	private static class Entry {
+		final Timeout timeout;
+		final long at;
+
+		Entry(Timeout t, long a) {
+			timeout = t;
+			at = a;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Entry>[] slots;
+	private final long tick; // ms per slot
+	private final int mask;
+	private volatile long cursor; // tick being processed, entries always go after it
+	private volatile boolean running = true;
+
+	/**
+	 * Create a wheel and start its thread
+	 * @param tickMs Milliseconds per slot, the resolution of the timeouts
+	 * @param size Number of slots, rounded up to a power of two. Checks further away than
+	 *        size * tickMs wait in their slot for later turns of the wheel.
+	 * @param name Name of the thread walking the wheel
+	 */
+	public TimingWheel(long tickMs, int size, String name) {
+		int n = 1;
+		while(n < size)
+			n <<= 1;
+		slots = newSlots(n);
+		for(int i = 0; i < n; i++)
+			slots[i] = new ConcurrentLinkedQueue<Entry>();
+		mask = n - 1;
+		tick = tickMs;
+		cursor = now() / tick;
+
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Create the slot array, Java cannot create an array of a generic type directly
+	 * @param n Number of slots
+	 * @return Array of n nulls
+	 */
+	@SuppressWarnings("unchecked")
+	private static ConcurrentLinkedQueue<Entry>[] newSlots(int n) {
+		return (ConcurrentLinkedQueue<Entry>[])new ConcurrentLinkedQueue<?>[n];
+	}
+
+	/**
+	 * @return Current time in monotonic milliseconds
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Schedule a check. A Timeout may be scheduled more than once; each entry calls check().
+	 * @param t Timeout to check
+	 * @param at Time from now() to check it at
+	 */
+	public void schedule(Timeout t, long at) {
+		long ticks = Math.max(at / tick, cursor + 1);
+		slots[(int)(ticks & mask)].add(new Entry(t, at));
+	}
+
+	/**
+	 * Stop the wheel thread, pending checks are dropped
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Walk the slots once per tick, checking the entries that are due
+	 */
+	public void run() {
+		while(running) {
+			long next = (cursor + 1) * tick;
+			long now = now();
+			if(now < next) {
+				try {
+					Thread.sleep(next - now);
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+
+			cursor = cursor + 1;
+			now = now();
+			Iterator<Entry> it = slots[(int)(cursor & mask)].iterator();
+			while(it.hasNext()) {
+				Entry e = it.next();
+				// entries for a later turn of the wheel stay where they are
+				if(e.at / tick > cursor)
+					continue;
+				it.remove();
+				try {
+					long again = e.timeout.check(now);
+					if(again > 0)
+						schedule(e.timeout, again);
+				}
+				catch(RuntimeException ex) {
+					AccessLog.message("ERROR: Timeout check failed.", ex);
+				}
+			}
+		}
+	}
+}